@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Synthetic images for the benchmarks.
+ *
+ * Pixels look roughly like a fluorescence channel: a dim, noisy background
+ * with a bright gradient across it. A fixed seed makes every run see the
+ * same pixels.
+ *
+ * @author timothygrocott
+ */
+class Fixtures {
+
+    /**
+     * Returns a composite image of square planes. All channels share one
+     * pixel array, so even 16k x 16k fixtures only cost one plane's memory.
+     */
+    static CompositeImage composite(int bitDepth, int size, int channels) {
+
+        Object pixels = plane(bitDepth, size, 42);
+        ImageStack stack = new ImageStack(size, size);
+        for (int c = 0; c < channels; c++)
+            stack.addSlice("C" + (c+1), pixels);
+        ImagePlus imp = new ImagePlus("Fixture " + bitDepth + "-bit " + size + "x" + size, stack);
+        imp.setDimensions(channels, 1, 1);
+        CompositeImage ci = new CompositeImage(imp, CompositeImage.COMPOSITE);
+        ci.resetDisplayRanges();
+        return ci;
+    }
+
+    static Object plane(int bitDepth, int size, long seed) {
+
+        int n = size*size;
+        long state = seed | 1;
+        switch (bitDepth) {
+            case 8: {
+                byte[] pixels = new byte[n];
+                for (int i = 0; i < n; i++) {
+                    state = next(state);
+                    pixels[i] = (byte)Math.min(255, value(state, i, size, 255) );
+                }
+                return pixels;
+            }
+            case 16: {
+                short[] pixels = new short[n];
+                for (int i = 0; i < n; i++) {
+                    state = next(state);
+                    pixels[i] = (short)Math.min(65535, value(state, i, size, 4095) );
+                }
+                return pixels;
+            }
+            default: {
+                float[] pixels = new float[n];
+                for (int i = 0; i < n; i++) {
+                    state = next(state);
+                    pixels[i] = value(state, i, size, 4095) + (state & 0xff)/256.0f;
+                }
+                return pixels;
+            }
+        }
+    }
+
+    /** A background of about a tenth of the maximum, plus noise, plus a diagonal gradient. */
+    private static int value(long random, int i, int size, int max) {
+
+        int x = i % size;
+        int y = i / size;
+        int background = max/10 + (int)( (random >>> 40) % (max/20 + 1) );
+        return background + (int)( (long)(x + y)*(max/2)/(2*size) );
+    }
+
+    /** Xorshift, which is quick enough to fill a 16k x 16k plane in a few seconds. */
+    private static long next(long x) {
+
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        return x;
+    }
+}
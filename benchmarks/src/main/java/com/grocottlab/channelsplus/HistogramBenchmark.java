@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.process.ImageProcessor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a channel's histogram, as JHistogram.updateHist() has done for
+ * it in the background: the plane is read from the stack and binned, either
+ * exactly or from a sample.
+ *
+ * @author timothygrocott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class HistogramBenchmark {
+
+    @Param({"8", "16", "32"})
+    int bitDepth;
+
+    @Param({"512", "2048", "8192", "16384"})
+    int size;
+
+    CompositeImage ci;
+    int bins;
+
+    @Setup
+    public void setup() {
+
+        ci = Fixtures.composite(bitDepth, size, 2);
+        bins = bitDepth == 8 ? 256 : HistogramKernel.getBinCount();
+    }
+
+    @Benchmark
+    public HistogramData exact() {
+
+        ImageProcessor ip = ChannelAccess.getProcessor(ci, 1);
+        return HistogramKernel.compute(ip, bins);
+    }
+
+    @Benchmark
+    public HistogramData sampled() {
+
+        ImageProcessor ip = ChannelAccess.getProcessor(ci, 1);
+        int stride = HistogramKernel.getSampleStride(ip.getWidth()*ip.getHeight(), ip.getWidth() );
+        return HistogramKernel.computeSampled(ip, bins, Math.max(1, stride) );
+    }
+}
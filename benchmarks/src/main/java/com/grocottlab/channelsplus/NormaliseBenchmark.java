@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Summing histogram bins into plot columns and scaling the linear and log
+ * plots, as JHistogram does each time a histogram arrives.
+ *
+ * @author timothygrocott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class NormaliseBenchmark {
+
+    @Param({"256", "4096", "65536"})
+    int bins;
+
+    int[] counts;
+    double[] lin = new double[JHistogram.PLOT_WIDTH];
+    double[] log = new double[JHistogram.PLOT_WIDTH];
+
+    @Setup
+    public void setup() {
+
+        Random random = new Random(42);
+        counts = new int[bins];
+        for (int i = 0; i < bins; i++)
+            counts[i] = random.nextInt(100000);
+    }
+
+    @Benchmark
+    public double[] normalise() {
+
+        JHistogram.normalise(counts, lin, log, 40.0);
+        return lin;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.plugin.LutLoader;
+import ij.process.LUT;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Painting a histogram and a LUT button into an offscreen image, as Swing
+ * does for each visible track on every repaint.
+ *
+ * @author timothygrocott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class PaintBenchmark {
+
+    CompositeImage ci;
+    JHistogram histogram;
+    JLutButton lutButton;
+    BufferedImage canvas;
+    Graphics2D g;
+
+    @Setup
+    public void setup() {
+
+        ci = Fixtures.composite(16, 512, 2);
+        histogram = new JHistogram(ci, 1);
+        // Take the background computation out of the picture, and hand the histogram its data directly...
+        HistogramEngine.getInstance().cancel(ci, 1);
+        histogram.histogramComputed( HistogramKernel.compute(ChannelAccess.getProcessor(ci, 1), HistogramKernel.getBinCount() ) );
+        histogram.setSize(JHistogram.PLOT_WIDTH+20, 60);
+        lutButton = new JLutButton( new LUT(LutLoader.getLut("Fire"), 0, 255) );
+        lutButton.setSize(36, 36);
+        canvas = new BufferedImage(JHistogram.PLOT_WIDTH+20, 60, BufferedImage.TYPE_INT_ARGB);
+        g = canvas.createGraphics();
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        g.dispose();
+        histogram.release();
+    }
+
+    /** A repaint with the histogram unchanged, which draws the cached bars. */
+    @Benchmark
+    public BufferedImage histogram() {
+
+        histogram.paintComponent(g);
+        return canvas;
+    }
+
+    /** A repaint after a new histogram has arrived, which renders the bars again. */
+    @Benchmark
+    public BufferedImage histogramRender() {
+
+        histogram.bars = null;
+        histogram.paintComponent(g);
+        return canvas;
+    }
+
+    @Benchmark
+    public BufferedImage lutButton() {
+
+        lutButton.paintComponent(g);
+        return canvas;
+    }
+}
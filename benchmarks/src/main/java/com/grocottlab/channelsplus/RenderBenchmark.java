@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.Prefs;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Redrawing a composite image, through ImageJ's own rendering and through
+ * the CompositeRenderer, both from scratch and after a change of one
+ * channel's display range, at full resolution and as a preview.
+ *
+ * @author timothygrocott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class RenderBenchmark {
+
+    @Param({"8", "16"})
+    public int bitDepth;
+
+    @Param({"2048", "4096"})
+    public int size;
+
+    @Param({"4", "8"})
+    public int channels;
+
+    CompositeImage ci;
+    boolean wasEnabled;
+    double settle;
+    boolean flip;
+
+    @Setup
+    public void setup() {
+
+        ci = Fixtures.composite(bitDepth, size, channels);
+        wasEnabled = CompositeRenderer.isEnabled();
+        CompositeRenderer.setEnabled(true);
+        // Keep the full resolution redraw that follows a preview from firing between iterations...
+        settle = Prefs.get(CompositeRenderer.PREF_SETTLE, 300);
+        Prefs.set(CompositeRenderer.PREF_SETTLE, 3600000);
+        CompositeRenderer.draw(ci);
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        CompositeRenderer.setEnabled(wasEnabled);
+        Prefs.set(CompositeRenderer.PREF_SETTLE, settle);
+        CompositeRenderer.remove( ci.getID() );
+    }
+
+    @Benchmark
+    public CompositeImage imagej() {
+
+        ci.setChannelsUpdated();
+        ci.updateImage();
+        return ci;
+    }
+
+    @Benchmark
+    public CompositeImage renderer() {
+
+        // Forget the last render, so the whole composite is redone...
+        CompositeRenderer.imageUpdated(ci);
+        CompositeRenderer.draw(ci);
+        return ci;
+    }
+
+    /** Moving one channel's range back and forth, as dragging its slider does. */
+    @Benchmark
+    public CompositeImage rendererOneChannel() {
+
+        flip = !flip;
+        double max = bitDepth == 8 ? 255 : 4095;
+        ChannelAccess.setDisplayRange(ci, 1, 0, flip ? max : max/2);
+        CompositeRenderer.draw(ci);
+        return ci;
+    }
+
+    /** As rendererOneChannel, drawn as the preview shown during a drag, from shrunk planes made in the first call. */
+    @Benchmark
+    public CompositeImage rendererPreview() {
+
+        flip = !flip;
+        double max = bitDepth == 8 ? 255 : 4095;
+        ChannelAccess.setDisplayRange(ci, 1, 0, flip ? max : max/2);
+        CompositeRenderer.draw(ci, true);
+        return ci;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+
+/**
+ * Works out display ranges from channel histograms, leaving a given
+ * percentage of pixels saturated, as ImageJ's Enhance Contrast does.
+ *
+ * Nothing here touches AWT or Swing, so it is shared by the "Auto" buttons
+ * and by headless batch processing. The saturated percentage is split evenly
+ * between the dark and bright ends of the histogram.
+ *
+ * @author timothygrocott
+ */
+class AutoContrast {
+
+    static final String PREF_SATURATED = "channelsplus.auto.saturated";
+
+    static double getSaturated() {
+        return Prefs.get(PREF_SATURATED, 0.35);
+    }
+
+    static void setSaturated(double saturated) {
+        Prefs.set(PREF_SATURATED, saturated);
+    }
+
+    /** Returns the {min, max} display range leaving the given percentage of the histogram's pixels outside it. */
+    static double[] getRange(HistogramData hist, double saturated) {
+
+        double tail = Math.max(0, Math.min(100, saturated))/200.0;
+        double min = hist.getPercentile(tail);
+        double max = hist.getPercentile(1 - tail);
+        // Nearly uniform channels fall back to their full data range...
+        if (max <= min) {
+            min = hist.dataMin;
+            max = hist.dataMax;
+        }
+        if (max <= min)
+            max = min + 1;
+        return new double[] {min, max};
+    }
+
+    /** Histograms a channel over every slice and frame, one plane at a time. */
+    static HistogramData getStackHistogram(ImagePlus imp, int channel) {
+
+        int bins = imp.getBitDepth() == 8 ? 256 : HistogramKernel.getBinCount();
+        HistogramKernel.Accumulator accumulator = new HistogramKernel.Accumulator(imp.getBitDepth(), bins);
+        ImageStack stack = imp.getStack();
+        for (int t = 1; t <= imp.getNFrames(); t++)
+            for (int z = 1; z <= imp.getNSlices(); z++)
+                accumulator.add( stack.getProcessor( imp.getStackIndex(channel, z, t) ) );
+        return accumulator.getHistogram(bins);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.plugin.LutLoader;
+import ij.process.LUT;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Auto-contrasts every TIFF in a folder and saves the results to another.
+ *
+ * Each image is opened, each of its channels histogrammed over all slices
+ * and frames, and its display ranges set to leave the saturated percentage
+ * of pixels outside them. LUTs can optionally be applied by name, one per
+ * channel. The result is saved as a TIFF of the same name, which keeps the
+ * LUTs and ranges with the pixels.
+ *
+ * Images are read on a small pool of reader threads and processed on a pool
+ * with one thread per core, so reading the next images overlaps processing
+ * the current ones. The number of images held in memory at once is bounded.
+ * An image that can't be opened, processed or saved, for whatever reason,
+ * is reported in its Result and the others carry on.
+ * Nothing here needs a display, so it runs headlessly.
+ *
+ * @author timothygrocott
+ */
+class BatchAutoContrast {
+
+    static final String[] EXTENSIONS = {".tif", ".tiff"};
+
+    final File input;
+    final File output;
+    final double saturated;
+    // LUT names by channel, or null/empty to keep each image's own...
+    final String[] luts;
+    int workers = Runtime.getRuntime().availableProcessors();
+    int readers = 2;
+
+    private final AtomicInteger completed = new AtomicInteger();
+
+    BatchAutoContrast(File input, File output, double saturated, String[] luts) {
+
+        this.input = input;
+        this.output = output;
+        this.saturated = saturated;
+        this.luts = luts;
+    }
+
+    /** Processes the whole folder, returning one result per image in file name order. */
+    List<Result> run() throws InterruptedException {
+
+        if (input.getAbsoluteFile().equals( output.getAbsoluteFile() ))
+            throw new IllegalArgumentException("Output folder must not be the input folder: " + input);
+        if (!output.isDirectory() && !output.mkdirs())
+            throw new IllegalArgumentException("Cannot create output folder: " + output);
+        final File[] files = listImages(input);
+        final Result[] results = new Result[files.length];
+        final ExecutorService readPool = Executors.newFixedThreadPool(readers, new BatchThreadFactory("Channels Plus Batch Reader") );
+        final ExecutorService workPool = Executors.newFixedThreadPool(workers, new BatchThreadFactory("Channels Plus Batch Worker") );
+        // Each permit is one image read or being read, waiting for a worker, or being processed...
+        final Semaphore inFlight = new Semaphore(workers + readers);
+        final CountDownLatch done = new CountDownLatch(files.length);
+        completed.set(0);
+        try {
+            for (int i = 0; i < files.length; i++) {
+                inFlight.acquire();
+                final int index = i;
+                readPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final ImagePlus imp;
+                        // Anything thrown, errors such as running out of memory included, fails just this image...
+                        try {
+                            imp = IJ.openImage( files[index].getPath() );
+                        } catch (Throwable e) {
+                            finish(index, new Result(files[index], null, e.toString() ));
+                            return;
+                        }
+                        if (imp == null) {
+                            finish(index, new Result(files[index], null, "could not be opened"));
+                            return;
+                        }
+                        workPool.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                Result result;
+                                try {
+                                    result = process(files[index], imp);
+                                } catch (Throwable e) {
+                                    result = new Result(files[index], null, e.toString() );
+                                } finally {
+                                    imp.flush();
+                                }
+                                finish(index, result);
+                            }
+                        });
+                    }
+
+                    private void finish(int index, Result result) {
+                        results[index] = result;
+                        inFlight.release();
+                        done.countDown();
+                        IJ.showProgress(completed.incrementAndGet(), files.length);
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            readPool.shutdownNow();
+            workPool.shutdownNow();
+        }
+        return Arrays.asList(results);
+    }
+
+    /** Sets the LUTs and display ranges of one image and saves it to the output folder. */
+    Result process(File file, ImagePlus imp) {
+
+        int channels = imp.getNChannels();
+        if (channels > 1 && !imp.isComposite())
+            imp = new CompositeImage(imp, CompositeImage.COMPOSITE);
+        double[][] ranges = new double[channels][];
+        for (int c = 1; c <= channels; c++) {
+            HistogramData hist = AutoContrast.getStackHistogram(imp, c);
+            ranges[c-1] = AutoContrast.getRange(hist, saturated);
+            if (luts != null && c <= luts.length && luts[c-1].trim().length() > 0)
+                setLut(imp, c, luts[c-1].trim() );
+            ChannelAccess.setDisplayRange(imp, c, ranges[c-1][0], ranges[c-1][1]);
+        }
+        String name = file.getName();
+        if (!name.toLowerCase().endsWith(".tif") && !name.toLowerCase().endsWith(".tiff"))
+            name = name + ".tif";
+        if (!new FileSaver(imp).saveAsTiff( new File(output, name).getPath() ))
+            return new Result(file, ranges, "could not be saved");
+        return new Result(file, ranges, null);
+    }
+
+    private static void setLut(ImagePlus imp, int channel, String name) {
+
+        IndexColorModel icm = LutLoader.getLut(name);
+        if (icm == null)
+            throw new IllegalArgumentException("Unknown LUT: " + name);
+        LUT lut = new LUT(icm, 0, 255);
+        if (imp.isComposite()) {
+            ((CompositeImage)imp).setChannelLut(lut, channel);
+        } else {
+            imp.getProcessor().setLut(lut);
+        }
+    }
+
+    static File[] listImages(File folder) {
+
+        File[] all = folder.listFiles();
+        if (all == null)
+            throw new IllegalArgumentException("Not a readable folder: " + folder);
+        ArrayList<File> images = new ArrayList<File>();
+        for (File file : all) {
+            String name = file.getName().toLowerCase();
+            if (!file.isFile() || name.startsWith("."))
+                continue;
+            for (String extension : EXTENSIONS) {
+                if (name.endsWith(extension)) {
+                    images.add(file);
+                    break;
+                }
+            }
+        }
+        File[] files = images.toArray( new File[images.size()] );
+        Arrays.sort(files);
+        return files;
+    }
+
+    /** What happened to one image: the ranges it was given, by channel, or why it failed. */
+    static class Result {
+
+        final File file;
+        final double[][] ranges;
+        final String error;
+
+        Result(File file, double[][] ranges, String error) {
+            this.file = file;
+            this.ranges = ranges;
+            this.error = error;
+        }
+
+        boolean isSuccess() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null)
+                return file.getName() + ": " + error;
+            StringBuilder sb = new StringBuilder( file.getName() );
+            for (int c = 0; c < ranges.length; c++)
+                sb.append(c == 0 ? ": " : ", ").append("C").append(c+1).append(' ')
+                  .append( IJ.d2s(ranges[c][0], 2) ).append('-').append( IJ.d2s(ranges[c][1], 2) );
+            return sb.toString();
+        }
+    }
+
+    private static class BatchThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        BatchThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet() );
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import java.awt.Color;
+
+/**
+ * Reads and writes a single channel's pixels, LUT and display range without
+ * moving the image to that channel.
+ *
+ * Switching channels with setC() just to read one of them can trigger image
+ * updates, ImageListener callbacks and redraws. These methods go to the stack
+ * and to the CompositeImage's per-channel LUTs instead, which hold the same
+ * data.
+ *
+ * @author timothygrocott
+ */
+class ChannelAccess {
+
+    /** Returns a processor for one plane of the stack. Nothing is copied, except by virtual stacks, which read the plane in. */
+    static ImageProcessor getProcessor(ImagePlus imp, int channel, int z, int t) {
+
+        return imp.getStack().getProcessor( imp.getStackIndex(channel, z, t) );
+    }
+
+    /** Returns a processor for a channel at the image's current slice and frame. */
+    static ImageProcessor getProcessor(ImagePlus imp, int channel) {
+
+        return getProcessor(imp, channel, imp.getZ(), imp.getT());
+    }
+
+    static LUT getLut(ImagePlus imp, int channel) {
+
+        if (imp.isComposite())
+            return ((CompositeImage)imp).getChannelLut(channel);
+        return imp.getProcessor().getLut();
+    }
+
+    static double getDisplayRangeMin(ImagePlus imp, int channel) {
+
+        if (imp.isComposite() && channel != imp.getC())
+            return ((CompositeImage)imp).getChannelLut(channel).min;
+        return imp.getDisplayRangeMin();
+    }
+
+    static double getDisplayRangeMax(ImagePlus imp, int channel) {
+
+        if (imp.isComposite() && channel != imp.getC())
+            return ((CompositeImage)imp).getChannelLut(channel).max;
+        return imp.getDisplayRangeMax();
+    }
+
+    /**
+     * Returns the colour used to draw a channel's histogram, following
+     * CompositeImage.getChannelColor(): the LUT's brightest colour, or black
+     * for grayscale and near-white LUTs.
+     */
+    static Color getChannelColor(ImagePlus imp, int channel) {
+
+        if (!imp.isComposite() || ((CompositeImage)imp).getMode() == CompositeImage.GRAYSCALE)
+            return Color.BLACK;
+        LUT lut = ((CompositeImage)imp).getChannelLut(channel);
+        if (lut == null)
+            return Color.BLACK;
+        int index = lut.getMapSize() - 1;
+        int r = lut.getRed(index);
+        int g = lut.getGreen(index);
+        int b = lut.getBlue(index);
+        if (r < 100 || g < 100 || b < 100)
+            return new Color(r, g, b);
+        return Color.BLACK;
+    }
+
+    /** Sets a channel's display range. The image is not redrawn. */
+    static void setDisplayRange(ImagePlus imp, int channel, double min, double max) {
+
+        if (!imp.isComposite() || channel == imp.getC()) {
+            imp.setDisplayRange(min, max);
+            return;
+        }
+        CompositeImage ci = (CompositeImage)imp;
+        LUT lut = (LUT)ci.getChannelLut(channel).clone();
+        lut.min = min;
+        lut.max = max;
+        ci.setChannelLut(lut, channel);
+    }
+}
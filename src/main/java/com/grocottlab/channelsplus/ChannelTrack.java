@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JMenuItem;
+import javax.swing.JPanel;
+import javax.swing.JPopupMenu;
+import javax.swing.JSeparator;
+import javax.swing.JTextField;
+import javax.swing.JToggleButton;
+
+/**
+ * One channel's track: label, scribble strip, solo, mute and auto-contrast
+ * buttons, LUT button and histogram.
+ *
+ * Tracks are recycled by the TrackList as it scrolls, so a track is not tied
+ * to one channel - bind() points it at another channel of the same image.
+ * Anything that has to outlive the binding, such as the scribble strip's
+ * text, is kept by the ChannelsPlusGUI.
+ *
+ * @author timothygrocott
+ */
+class ChannelTrack extends JPanel {
+
+    final ChannelsPlusGUI gui;
+    final ImagePlus ci;
+    // Zero-based channel this track is currently showing...
+    int channel;
+    JLabel label;
+    JTextField scribble;
+    JToggleButton soloButton, muteButton;
+    ItemListener soloListener, muteListener;
+    JButton autoButton;
+    JLutButton lutButton;
+    JHistogram histogram;
+    JSeparator separator;
+
+    ChannelTrack(final ChannelsPlusGUI gui, int channel) {
+
+        super( new BorderLayout() );
+        this.gui = gui;
+        this.ci = gui.ci;
+        this.channel = channel;
+        JPanel track = new JPanel(new FlowLayout(FlowLayout.LEFT) );
+
+        // Add a channel label...
+        label = new JLabel(" " + (channel+1) + " ");
+        label.setFont(new Font("Arial", Font.BOLD, 32));
+        label.setForeground(Color.GRAY);
+        track.add( label );
+
+        // Add a scribble strip for short temporary notes...
+        scribble = new JTextField( gui.names[channel] );
+        scribble.setPreferredSize( new Dimension(100, 20) );
+        track.add( scribble );
+
+        // Create solo button...
+        soloButton = new JToggleButton("S");
+        soloButton.setToolTipText("Solo channel");
+        soloListener = new ItemListener() {
+            @Override
+            public void itemStateChanged(ItemEvent itemEvent) {
+                gui.solo(ChannelTrack.this.channel, itemEvent.getStateChange() == ItemEvent.SELECTED);
+            }
+        };
+        soloButton.addItemListener(soloListener);
+        track.add(soloButton);
+
+        // Create a mute button...
+        muteButton = new JToggleButton("M");
+        muteButton.setToolTipText("Mute channel");
+        muteListener = new ItemListener() {
+            @Override
+            public void itemStateChanged(ItemEvent itemEvent) {
+                gui.mute(ChannelTrack.this.channel, itemEvent.getStateChange() == ItemEvent.SELECTED);
+            }
+        };
+        muteButton.addItemListener(muteListener);
+        track.add(muteButton);
+
+        // Create an auto-contrast button...
+        autoButton = new JButton("A");
+        autoButton.setToolTipText("Auto contrast");
+        autoButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                gui.autoContrast( new int[] {ChannelTrack.this.channel} );
+            }
+        });
+        track.add(autoButton);
+
+        // Create a pop-up menu listing luts, shared by whichever channel the track is showing...
+        final JPopupMenu lutPopup = new JPopupMenu("LUTs");
+        for (int i = 0; i < gui.lutListBuiltIn.length; i++) {
+            JMenuItem lutItem = new JMenuItem( gui.lutListBuiltIn[i] );
+            lutItem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent ae) {
+                    gui.setLut(ChannelTrack.this.channel, ae.getActionCommand() );
+                }
+            });
+            lutPopup.add(lutItem);
+        }
+        // Create an LUT button...
+        lutButton = new JLutButton( ChannelAccess.getLut(ci, channel+1) );
+        lutButton.setToolTipText("LUT");
+        lutButton.addActionListener( new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                lutPopup.show(lutButton, 0, 0);
+            }
+        });
+        track.add(lutButton);
+
+        // Create channel histogram...
+        histogram = new JHistogram(ci, channel+1);
+        track.add(histogram);
+
+        add(track, BorderLayout.CENTER);
+        separator = new JSeparator();
+        add(separator, BorderLayout.SOUTH);
+        updateState();
+    }
+
+    /** Points this track at another channel, keeping its components. */
+    void bind(int channel) {
+
+        if (channel == this.channel)
+            return;
+        // Hang on to any notes made for the channel we are leaving...
+        gui.names[this.channel] = scribble.getText();
+        this.channel = channel;
+        label.setText(" " + (channel+1) + " ");
+        scribble.setText( gui.names[channel] );
+        histogram.setChannel(channel+1);
+        updateState();
+    }
+
+    /** Brings the buttons up to date with the image, then recomputes the histogram. */
+    void refresh() {
+
+        updateState();
+        histogram.updateHist(ci, channel+1);
+    }
+
+    /** Sets the mute, solo and LUT buttons and the sliders from the image, without triggering the buttons' listeners. */
+    void updateState() {
+
+        boolean active = true;
+        boolean solo = false;
+        if (gui.channels > 1) {
+            active = ((CompositeImage)ci).getActiveChannels()[channel];
+            solo = ((CompositeImage)ci).getMode() == CompositeImage.COLOR && channel == ci.getC()-1;
+        }
+        muteButton.removeItemListener(muteListener);
+        soloButton.removeItemListener(soloListener);
+        muteButton.setSelected(!active);
+        soloButton.setSelected(solo);
+        muteButton.addItemListener(muteListener);
+        soloButton.addItemListener(soloListener);
+        // Only a soloed channel's sliders are enabled...
+        histogram.setSlidersEnabled(solo);
+        lutButton.updateLut( ChannelAccess.getLut(ci, channel+1) );
+        separator.setVisible(channel < gui.channels-1);
+    }
+
+    void saveName() {
+        gui.names[channel] = scribble.getText();
+    }
+
+    /** Keeps the scribble strip's text and lets go of the histogram. */
+    void release() {
+
+        saveName();
+        histogram.release();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.LutLoader;
+import ij.plugin.frame.Channels;
+import ij.process.LUT;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Collects changes to an image's channels - mutes, solo, LUTs and display
+ * ranges - and applies them all at once.
+ *
+ * Nothing touches the image until commit(), which writes the active channels
+ * straight into the CompositeImage, sets each changed channel's LUT and
+ * range once, and redraws the image a single time. The display update is
+ * flagged to the HistogramCache, so histograms only redraw their ranges and
+ * are not recomputed. Channels count from 1. A transaction is used once, on
+ * the event dispatch thread.
+ *
+ * @author timothygrocott
+ */
+class ChannelTransaction {
+
+    private static final int UNCHANGED = -1;
+    private static final int COMPOSITE = 0;
+
+    private final ImagePlus imp;
+    private final int channels;
+    // Channels that will be shown in composite mode...
+    private final BitSet active = new BitSet();
+    // ...of which these have been muted or unmuted
+    private final BitSet muted = new BitSet();
+    // Channel to solo, COMPOSITE to return to composite display, or UNCHANGED...
+    private int solo = UNCHANGED;
+    // New LUT and range of each channel, or null and NaN where unchanged...
+    private final LUT[] luts;
+    private final double[] min;
+    private final double[] max;
+    private final BitSet changed = new BitSet();
+
+    ChannelTransaction(ImagePlus imp) {
+
+        this.imp = imp;
+        channels = imp.getNChannels();
+        boolean[] current = imp.isComposite() ? ((CompositeImage)imp).getActiveChannels() : null;
+        for (int c = 0; c < channels; c++)
+            if (current == null || current[c]) active.set(c);
+        luts = new LUT[channels];
+        min = new double[channels];
+        max = new double[channels];
+        Arrays.fill(min, Double.NaN);
+        Arrays.fill(max, Double.NaN);
+    }
+
+    ChannelTransaction mute(int channel, boolean muted) {
+
+        check(channel);
+        active.set(channel-1, !muted);
+        this.muted.set(channel-1);
+        return this;
+    }
+
+    /** Shows only the given channel. */
+    ChannelTransaction solo(int channel) {
+
+        check(channel);
+        solo = channel;
+        return this;
+    }
+
+    /** Returns to composite display, showing the channels that aren't muted. */
+    ChannelTransaction unsolo() {
+
+        solo = COMPOSITE;
+        return this;
+    }
+
+    /** Replaces a channel's LUT. Unless a range is also set, the channel keeps its display range. */
+    ChannelTransaction setLut(int channel, LUT lut) {
+
+        check(channel);
+        luts[channel-1] = lut;
+        changed.set(channel-1);
+        return this;
+    }
+
+    ChannelTransaction setDisplayRange(int channel, double min, double max) {
+
+        check(channel);
+        this.min[channel-1] = min;
+        this.max[channel-1] = max;
+        changed.set(channel-1);
+        return this;
+    }
+
+    boolean isEmpty() {
+        return muted.isEmpty() && solo == UNCHANGED && changed.isEmpty();
+    }
+
+    /**
+     * Adds changes written as a space-separated list, as macros pass them:
+     * "mute=1,3", "unmute=2", "solo=2", "composite", "lut=2:Fire" and
+     * "range=1:100,4000". Throws IllegalArgumentException if any of them
+     * can't be read, before any are added.
+     */
+    ChannelTransaction add(String changes) {
+
+        String[] items = changes.trim().split("\\s+");
+        // Parse everything first, so a mistake part way through changes nothing...
+        ChannelTransaction parsed = new ChannelTransaction(imp);
+        for (int i = 0; i < items.length; i++) {
+            String item = items[i];
+            if (item.length() == 0)
+                continue;
+            int equals = item.indexOf('=');
+            String key = equals < 0 ? item : item.substring(0, equals);
+            String value = equals < 0 ? "" : item.substring(equals+1);
+            if (key.equals("mute") || key.equals("unmute")) {
+                for (String channel : value.split(","))
+                    parsed.mute(parseChannel(channel), key.equals("mute") );
+            } else if (key.equals("solo")) {
+                parsed.solo( parseChannel(value) );
+            } else if (key.equals("composite")) {
+                parsed.unsolo();
+            } else if (key.equals("lut")) {
+                int colon = value.indexOf(':');
+                if (colon < 0)
+                    throw new IllegalArgumentException("expected lut=<channel>:<name>, not " + item);
+                parsed.setLut( parseChannel(value.substring(0, colon)), getLut( value.substring(colon+1) ));
+            } else if (key.equals("range")) {
+                int colon = value.indexOf(':');
+                String[] range = colon < 0 ? new String[0] : value.substring(colon+1).split(",");
+                if (range.length != 2)
+                    throw new IllegalArgumentException("expected range=<channel>:<min>,<max>, not " + item);
+                parsed.setDisplayRange( parseChannel(value.substring(0, colon)), parseNumber(range[0]), parseNumber(range[1]) );
+            } else {
+                throw new IllegalArgumentException("unknown change: " + item);
+            }
+        }
+        merge(parsed);
+        return this;
+    }
+
+    private void merge(ChannelTransaction other) {
+
+        for (int c = other.muted.nextSetBit(0); c >= 0; c = other.muted.nextSetBit(c+1)) {
+            active.set(c, other.active.get(c) );
+            muted.set(c);
+        }
+        if (other.solo != UNCHANGED)
+            solo = other.solo;
+        for (int c = other.changed.nextSetBit(0); c >= 0; c = other.changed.nextSetBit(c+1)) {
+            if (other.luts[c] != null) luts[c] = other.luts[c];
+            if (!Double.isNaN(other.min[c])) {
+                min[c] = other.min[c];
+                max[c] = other.max[c];
+            }
+            changed.set(c);
+        }
+    }
+
+    /** Applies every change with a single redraw. Returns false, without redrawing, if there were none. */
+    boolean commit() {
+
+        if (isEmpty())
+            return false;
+        long start = System.nanoTime();
+        HistogramCache.getInstance().beginDisplayUpdate( imp.getID() );
+        try {
+            if (imp.isComposite()) {
+                commitComposite( (CompositeImage)imp );
+            } else {
+                if (changed.get(0)) {
+                    LUT lut = getNewLut(0);
+                    if (luts[0] != null) imp.setLut(lut);
+                    imp.setDisplayRange(lut.min, lut.max);
+                }
+                imp.updateAndDraw();
+            }
+        } finally {
+            HistogramCache.getInstance().endDisplayUpdate( imp.getID() );
+        }
+        Metrics.getInstance().record("channels.commit", start);
+        return true;
+    }
+
+    private void commitComposite(CompositeImage ci) {
+
+        // Work out the new LUTs while the current channel's range can still be read from its processor...
+        LUT[] newLuts = new LUT[channels];
+        for (int c = changed.nextSetBit(0); c >= 0; c = changed.nextSetBit(c+1))
+            newLuts[c] = getNewLut(c);
+        // Change mode and channel without the redraws setDisplayMode() and setC() would each do...
+        if (solo > 0) {
+            ci.setMode(IJ.COLOR);
+            ci.setPositionWithoutUpdate(solo, ci.getZ(), ci.getT() );
+        } else if (solo == COMPOSITE) {
+            ci.setMode(IJ.COMPOSITE);
+        }
+        // ...and likewise write the active channels in place rather than through setActiveChannels()
+        if (!muted.isEmpty()) {
+            boolean[] current = ci.getActiveChannels();
+            for (int c = 0; c < channels; c++)
+                current[c] = active.get(c);
+        }
+        for (int c = changed.nextSetBit(0); c >= 0; c = changed.nextSetBit(c+1)) {
+            LUT lut = newLuts[c];
+            ci.setChannelLut(lut, c+1);
+            // The current channel's range lives in its processor too...
+            if (c+1 == ci.getC())
+                ci.setDisplayRange(lut.min, lut.max);
+        }
+        if (!muted.isEmpty() || solo != UNCHANGED)
+            Channels.updateChannels();
+        // A change hard on the heels of the last one is part of a run of them, so only needs a preview...
+        // ...otherwise ImageJ draws it, though not with updateAllChannelsAndDraw(), which gives every channel the current one's range
+        if (!CompositeRenderer.draw(ci, CompositeRenderer.isInteracting(ci) ))
+            ci.updateAndDraw();
+    }
+
+    /** Returns a channel's new LUT, with its new range or, failing that, its current one. */
+    private LUT getNewLut(int c) {
+
+        LUT lut = luts[c] != null ? luts[c] : ChannelAccess.getLut(imp, c+1);
+        lut = (LUT)lut.clone();
+        lut.min = Double.isNaN(min[c]) ? ChannelAccess.getDisplayRangeMin(imp, c+1) : min[c];
+        lut.max = Double.isNaN(max[c]) ? ChannelAccess.getDisplayRangeMax(imp, c+1) : max[c];
+        return lut;
+    }
+
+    /** Returns one of ImageJ's LUTs by name, such as "Fire" or "Green". */
+    static LUT getLut(String name) {
+
+        IndexColorModel icm = LutLoader.getLut(name);
+        if (icm == null)
+            throw new IllegalArgumentException("unknown LUT: " + name);
+        return new LUT(icm, 0, 255);
+    }
+
+    private void check(int channel) {
+
+        if (channel < 1 || channel > channels)
+            throw new IllegalArgumentException("no channel " + channel + " in " + imp.getTitle() );
+    }
+
+    private static int parseChannel(String s) {
+
+        try {
+            return Integer.parseInt( s.trim() );
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a channel number: " + s);
+        }
+    }
+
+    private static double parseNumber(String s) {
+
+        try {
+            return Double.parseDouble( s.trim() );
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number: " + s);
+        }
+    }
+}
@@ -17,38 +17,27 @@
 package com.grocottlab.channelsplus;
 
 import ij.CompositeImage;
-import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.GUI;
 import ij.plugin.CompositeConverter;
-import ij.plugin.LutLoader;
 import ij.plugin.frame.PlugInDialog;
 import ij.plugin.frame.Recorder;
 import ij.process.ImageConverter;
-import ij.process.LUT;
-import java.awt.Color;
 import java.awt.Component;
-import java.awt.Dimension;
-import java.awt.FlowLayout;
-import java.awt.Font;
 import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.event.ItemEvent;
-import java.awt.event.ItemListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JLabel;
-import javax.swing.JMenuItem;
 import javax.swing.JPanel;
-import javax.swing.JPopupMenu;
-import javax.swing.JSeparator;
-import javax.swing.JTextField;
-import javax.swing.JToggleButton;
+import javax.swing.JScrollPane;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 /**
  *
@@ -61,12 +50,12 @@ class ChannelsPlusGUI extends PlugInDialog implements WindowListener {
     int image_id;
     private Point location;
     int channels;
-    String info;
-    JLabel[] label;
-    JTextField[] scribble;
-    JToggleButton[] soloButton, muteButton;
-    JLutButton[] lutButton;
-    JHistogram[] histogram;
+    // Channel names, or whatever has since been typed into their scribble strips...
+    String[] names;
+    TrackList trackList;
+    // Display settings taken as the image closed, to be saved in place of its own...
+    private String closingKey;
+    private DisplaySettings closingSettings;
     // Names of built-in luts...
     String[] lutListBuiltIn = {	"Fire",
                                 "Grays",
@@ -86,6 +75,7 @@ class ChannelsPlusGUI extends PlugInDialog implements WindowListener {
     
         super("Channels Plus");
         
+        long start = System.nanoTime();
         this.ci = ci;
         image_id = ci.getID();
         // Get image dimensions
@@ -100,7 +90,8 @@ class ChannelsPlusGUI extends PlugInDialog implements WindowListener {
             guiPanel = getCompositeGUI();
         }
         this.add(guiPanel);
-        this.setResizable(false);
+        // Long track lists scroll, and can be resized to show more or fewer tracks...
+        this.setResizable(trackList != null && trackList.isScrolling() );
         this.pack();
         if (location == null) {
             GUI.centerOnImageJScreen(this);
@@ -108,6 +99,7 @@ class ChannelsPlusGUI extends PlugInDialog implements WindowListener {
         } else {
             setLocation(location);
         }
+        Metrics.getInstance().record("gui.create", start);
         //this.setAlwaysOnTop(true);
 	ci.updateAndDraw();
         setAutoRequestFocus(false);
@@ -141,206 +133,127 @@ class ChannelsPlusGUI extends PlugInDialog implements WindowListener {
         
         JPanel panel = new JPanel();
         panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS) );
-        
-        JPanel[] track = new JPanel[channels];
 	
-        // Get image info and parse info for channel names
-        info = ci.getInfoProperty();
-        String[] names = new String[channels];
+        // Get channel names from the image's metadata, indexed once per image...
+        MetadataIndex metadata = MetadataIndex.get(ci);
+        names = new String[channels];
         for(int c = 0; c < channels; c++) {
-            String searchTerm = "Information|Image|Channel|Name #" + (c+1) + " = ";
-            try {
-                int index1 = info.indexOf(searchTerm);
-                int index2 = info.indexOf("=", index1);
-                int index3 = info.indexOf("\n", index2);
-                names[c] = info.substring(index2+2, index3);
-            } catch (NullPointerException e) {
-                names[c] = "Channel " + (c+1);
-            }
-        }	
+            String name = metadata.getChannelName(c+1);
+            names[c] = name != null ? name : "Channel " + (c+1);
+        }
+        // Restore the display settings and names the image had when last closed...
+        DisplaySettings settings;
+        HistogramCache.getInstance().beginDisplayUpdate(image_id);
+        try {
+            settings = SettingsStore.getInstance().restore(ci);
+        } finally {
+            HistogramCache.getInstance().endDisplayUpdate(image_id);
+        }
+        if (settings != null)
+            for (int c = 0; c < channels; c++)
+                if (settings.names[c].length() > 0) names[c] = settings.names[c];
 
-        // Get luts for CompositeImage
-        LUT[] lut = ci.getLuts();
-	
-        // Define arrays for chanel components
-        label = new JLabel[channels];
-        scribble = new JTextField[channels];
-        soloButton = new JToggleButton[channels];
-        muteButton = new JToggleButton[channels];
-        lutButton  = new JLutButton[channels];
-        histogram  = new JHistogram[channels];
+        // Only the tracks in view are built - the rest are made by reusing them as the list scrolls...
+        trackList = new TrackList(this);
+        JScrollPane scrollPane = new JScrollPane(trackList,
+                                                 JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+                                                 JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        scrollPane.setBorder( BorderFactory.createEmptyBorder() );
+        scrollPane.getViewport().addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                trackList.layoutTracks();
+            }
+        });
+        panel.add(scrollPane);
         
-        // For each channel...
-        for (int c = 0; c < channels; c++) {
-            
-            // Make a new track for this channe...
-            track[c] = new JPanel(new FlowLayout(FlowLayout.LEFT) );
-    
-            // Add a channel label...
-            label[c] = new JLabel(" " + (c+1) + " ");
-            label[c].setFont(new Font("Arial", Font.BOLD, 32));
-            label[c].setForeground(Color.GRAY);
-            track[c].add( label[c] );
-	
-            // Add a scribble strip for short temporary notes...
-            scribble[c] = new JTextField( names[c] );
-            scribble[c].setPreferredSize( new Dimension(100, 20) );
-            track[c].add( scribble[c] );
-	
-            // Create solo button...
-            soloButton[c] = new JToggleButton("S");
-            soloButton[c].setToolTipText("Solo channel");
-            final int chan = c;
-            final int chanCount = channels;
-            soloButton[c].addItemListener(
-            new ItemListener() {
-                @Override
-                public void itemStateChanged(ItemEvent itemEvent) {
-                    int state = itemEvent.getStateChange();
-                    if (state == ItemEvent.SELECTED) {
-      
-                        // deselect the other toogles in this group and all histogram sliders...
-                        for (int c = 0; c < channels; c++) {
-                            // Remove Itemlisteners from mute/solo buttons...
-                            ItemListener[] soloListeners = soloButton[c].getItemListeners();
-                            soloButton[c].removeItemListener(soloListeners[0]);
-                            if (c != chan) {
-                                soloButton[c].setSelected(false);
-                                histogram[c].setSlidersEnabled(false);
-                            } else {
-                                soloButton[c].setSelected(true);
-                                histogram[c].setSlidersEnabled(true);
-                            }
-                            // ...restore ItemListeners
-                            soloButton[c].addItemListener(soloListeners[0]);
-                        }
-                        ci.setDisplayMode(IJ.COLOR);
-                        ci.setC(chan+1);
-                    } else if (state == ItemEvent.DESELECTED) {
-                        // switch back to composite display mode
-                        ci.setDisplayMode(IJ.COMPOSITE);
-                        // disable histogram sliders for this channel
-                        histogram[chan].setSlidersEnabled(false);
-                        // restore channel mute settings based on mutebutton states
-                        boolean[] active = new boolean[chanCount];
-                        for (int c = 0; c < channels; c++) {
-                            active[c] = true;
-                            if(muteButton[c].isSelected()) active[c] = false;
-                        }
-                        String muteStr = "";
-                        for (int c = 0; c < chanCount; c++) {
-                            if (active[c]) {
-                                muteStr = muteStr + "1";
-                            } else {
-                                muteStr = muteStr + "0";
-                            }
-                        }
-                        ci.setActiveChannels(muteStr);
-                    }
-                }
-            });
-            track[c].add(soloButton[c]);
-            // Create a mute button...
-            muteButton[c] = new JToggleButton("M");
-            muteButton[c].setToolTipText("Mute channel");
-            // Get status of each channel from CompositeImage...
-            boolean[] active;
-            if (channels>1) {
-                active = ((CompositeImage)ci).getActiveChannels();
-            } else {
-                active = new boolean[1];
-                active[0] = true;
+        // Add a button to auto-contrast every channel at once...
+        JButton autoAllButton = new JButton("Auto all");
+        autoAllButton.setToolTipText("Auto contrast all channels");
+        autoAllButton.setAlignmentX(Component.CENTER_ALIGNMENT);
+        autoAllButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                int[] all = new int[channels];
+                for (int c = 0; c < channels; c++) all[c] = c;
+                autoContrast(all);
             }
-            // Set current mute buttons selection to match channel status...
-            muteButton[c].setSelected( !active[c] );
-            // Add ItemListener to this mute button...
-            muteButton[c].addItemListener(
-                new ItemListener() {
-                    @Override
-                    public void itemStateChanged(ItemEvent itemEvent) {
-                        int state = itemEvent.getStateChange();
-                        //CompositeImage ci = parent.getImage();
-                        //boolean[] active = ci.getActiveChannels();
-                        // Get status of each channel from CompositeImage...
-//                        boolean[] active;
-//                        if (channels>1) {
-//                            active = ((CompositeImage)ci).getActiveChannels();
-//                        } else {
-//                            active = new boolean[1];
-//                            active[0] = true;
-//                        }
-                        if (state == ItemEvent.SELECTED) {
-                            // Mute/hide the selected channel
-                            active[chan] = false;
-                        } else if (state == ItemEvent.DESELECTED) {
-                            // Unmute/show the selected channel
-                            active[chan] = true;
-                        }
-                        String muteStr = "";
-                        for (int c = 0; c < chanCount; c++) {
-                            if (active[c]) {
-                                muteStr = muteStr + "1";
-                            } else {
-                                muteStr = muteStr + "0";
-                            }
-                        }
-                        ci.setActiveChannels(muteStr);
-                    }
+        });
+        panel.add(autoAllButton);
+        return panel;
+    }
+    
+    /** Solos a channel, or returns to composite display with the muted channels hidden. */
+    void solo(int chan, boolean selected) {
+        
+        ChannelTransaction transaction = new ChannelTransaction(ci);
+        if (selected) {
+            transaction.solo(chan+1);
+        } else {
+            transaction.unsolo();
+        }
+        transaction.commit();
+        // deselect the other solo buttons and update the histogram sliders...
+        trackList.updateState();
+    }
+    
+    /**
+     * Sets channels' display ranges to leave AutoContrast.getSaturated()
+     * percent of their pixels saturated. The channels are histogrammed in
+     * parallel, and all the new ranges are drawn with a single redraw.
+     */
+    void autoContrast(int[] chans) {
+        
+        final long start = System.nanoTime();
+        final double saturated = AutoContrast.getSaturated();
+        int[] channelNumbers = new int[chans.length];
+        for (int i = 0; i < chans.length; i++) channelNumbers[i] = chans[i]+1;
+        HistogramEngine.getInstance().submitAll(ci, channelNumbers, new HistogramEngine.BatchListener() {
+            @Override
+            public void histogramsComputed(int[] channelNumbers, HistogramData[] hists) {
+                // The dialog may have been closed while the histograms were computed...
+                if (!isDisplayable())
+                    return;
+                ChannelTransaction transaction = new ChannelTransaction(ci);
+                for (int i = 0; i < channelNumbers.length; i++) {
+                    double[] range = AutoContrast.getRange(hists[i], saturated);
+                    transaction.setDisplayRange(channelNumbers[i], range[0], range[1]);
                 }
-            );
-            track[c].add(muteButton[c]);
-            
-            // Create a pop-up menu listing luts
-            JPopupMenu lutPopup = new JPopupMenu("LUTs");
-            JMenuItem[] lutItem = new JMenuItem[lutListBuiltIn.length];
-            for (int i = 0; i < lutListBuiltIn.length; i++) {
-                lutItem[i] = new JMenuItem( lutListBuiltIn[i] );
-                lutItem[i].addActionListener(new ActionListener() {
-                    @Override
-                    public void actionPerformed(ActionEvent ae) {
-                        //IJ.log("actionPerformed() - lutItem");
-                        String lutStr = ae.getActionCommand();
-                        java.awt.image.IndexColorModel icm = LutLoader.getLut(lutStr);
-                        LUT newLut = new LUT(icm, 0, 255);
-                        //CompositeImage ci = (CompositeImage) imp;
-                        //ImagePlus ci = WindowManager.getCurrentImage();
-                        if (channels>1) {
-                            ((CompositeImage)ci).setChannelLut(newLut, chan+1);
-                        } else {
-                            ci.setLut(newLut);
-                        }
-                        updateTracks();
-                        ci.updateImage();
-                    }
-                });
-                lutPopup.add(lutItem[i]);
+                // ...then draw them all at once
+                transaction.commit();
+                Metrics.getInstance().record("auto.contrast", start);
             }
-            // Create an LUT button...
-            if(ci.getType() == ImagePlus.COLOR_RGB) {
-                
-            } else {
-                lutButton[c]  = new JLutButton( lut[c] ); // ArrayIndexOutOfBounds when image is RGB. Other color modes seem to work ok, including 8-bit color, 16-bit, 32-bit.
-                lutButton[c].setToolTipText("LUT");
-                lutButton[c].addActionListener( new ActionListener() {
-                    @Override
-                    public void actionPerformed(ActionEvent ae) {
-                        //IJ.log("actionPerformed() - lut button");
-                        JLutButton b = (JLutButton) ae.getSource();
-                        lutPopup.show(b, 0, 0);
-                    }
-                });
-                track[c].add(lutButton[c]);
-            }
-            // Create channel histogram...
-            histogram[c] = new JHistogram(ci, c+1);
-            
-            track[c].add(histogram[c]);
-	
-            // Add this track...
-            panel.add(track[c]);
-            if(c < channels-1) panel.add(new JSeparator() );
-        }
-        return panel;
+        });
+    }
+    
+    /** Mutes or unmutes a channel. */
+    void mute(int chan, boolean muted) {
+        
+        new ChannelTransaction(ci).mute(chan+1, muted).commit();
+    }
+    
+    /** Applies one of the built-in LUTs to a channel, keeping its display range. */
+    void setLut(int chan, String lutStr) {
+        
+        new ChannelTransaction(ci).setLut(chan+1, ChannelTransaction.getLut(lutStr) ).commit();
+        // The pixels haven't changed, so only the buttons need updating...
+        trackList.updateState();
+    }
+    
+    /** Brings the tracks' buttons up to date after the image's channels were changed from elsewhere, such as a macro. */
+    void channelsChanged() {
+        
+        if (trackList != null)
+            trackList.updateState();
+    }
+    
+    /** Returns the string of 1s and 0s that CompositeImage.setActiveChannels() takes. */
+    static String getMuteString(boolean[] active) {
+        
+        char[] muteStr = new char[active.length];
+        for (int c = 0; c < active.length; c++)
+            muteStr[c] = active[c] ? '1' : '0';
+        return new String(muteStr);
     }
     
     public int getImageID() {
@@ -348,50 +261,48 @@ class ChannelsPlusGUI extends PlugInDialog implements WindowListener {
     }
     
     public void updateTracks() {
-        channels = ci.getDimensions()[2];
-        // Get channel Luts from current image...
-        LUT[] lut = ci.getLuts();
-        // Get status of each channel from current image...
-//        boolean[] active = ci.getActiveChannels();
-        // Get status of each channel from CompositeImage...
-        boolean[] active;
-        if (channels>1) {
-            active = ((CompositeImage)ci).getActiveChannels();
-        } else {
-            active = new boolean[1];
-            active[0] = true;
-        }
-        // Get current channel
-        int currentChannel = ci.getC() - 1;
-        for (int c = 0; c < channels; c++) {
-            // Remove Itemlisteners from mute/solo buttons...
-            ItemListener[] muteListeners = muteButton[c].getItemListeners();
-            muteButton[c].removeItemListener(muteListeners[0]);
-            ItemListener[] soloListeners = soloButton[c].getItemListeners();
-            soloButton[c].removeItemListener(soloListeners[0]);
-            // Set mute button without triggering ItemListeners
-            muteButton[c].setSelected( !active[c] );
-            // Now we can set solo buttons without triggering ItemListeners...
-            // Deselect current solo button, in case it was previously selected
-            soloButton[c].setSelected(false);
-            // Similarly, disable histogram sliders
-            histogram[c].setSlidersEnabled(false);
-            // If the current channel is actve...
-            if (channels>1)
-            if ( ((CompositeImage)ci).getMode() == CompositeImage.COLOR && c == currentChannel) {
-                // ...select it's solo button
-                soloButton[c].setSelected(true);
-                // ...and enable it's histogram sliders
-                histogram[c].setSlidersEnabled(true);
-            }
-            // ...finally restore ItemListeners    		
-            muteButton[c].addItemListener(muteListeners[0]);
-            soloButton[c].addItemListener(soloListeners[0]);
-            // Update Lut button with channel Lut from current image
-            lutButton[c].updateLut( lut[c] );
-            // Update histogram with channel histogram from current image
-            histogram[c].updateHist(ci, c+1);
+        
+        // Only the tracks in view exist - the others are brought up to date as they are scrolled into view
+        long start = System.nanoTime();
+        if (trackList != null)
+            trackList.refresh();
+        Metrics.getInstance().record("gui.updateTracks", start);
+    }
+
+    /**
+     * Takes the image's display settings, for saveSettings() to save in place
+     * of the image's own once it has been flushed. May be called on any
+     * thread.
+     */
+    void captureSettings() {
+
+        closingKey = SettingsStore.getKey(ci);
+        closingSettings = DisplaySettings.capture(ci, null);
+    }
+
+    /** Saves the image's display settings and channel names, to be restored when it is next opened. */
+    void saveSettings() {
+
+        if (trackList == null)
+            return;
+        trackList.saveNames();
+        if (closingSettings == null) {
+            SettingsStore.getInstance().save(ci, DisplaySettings.capture(ci, names) );
+            return;
         }
+        for (int c = 0; c < closingSettings.names.length && c < names.length; c++)
+            closingSettings.names[c] = names[c] != null ? names[c] : "";
+        SettingsStore.getInstance().save(closingKey, closingSettings);
+    }
+
+    /** Unregisters this GUI's histograms from the image before disposing of the dialog. */
+    @Override
+    public void dispose() {
+        
+        if (trackList != null)
+            trackList.release();
+        WindowManager.removeWindow(this);
+        super.dispose();
     }
 
     @Override
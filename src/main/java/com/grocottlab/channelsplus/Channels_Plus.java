@@ -20,9 +20,10 @@ import ij.*;
 import ij.plugin.*;
 
 import java.awt.KeyboardFocusManager;
+import java.lang.reflect.InvocationTargetException;
+import javax.swing.SwingUtilities;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.util.ArrayList;
 
 /*
  * Need to seperate the gui/dialog, of which several instances may be created/detroyed, from the PropertyChangeListener (PCL).
@@ -34,7 +35,7 @@ import java.util.ArrayList;
 public class Channels_Plus implements PlugIn, PropertyChangeListener {
     
     //static Channels_Plus instance;
-    static ArrayList<ChannelsPlusGUI> gui_list;
+    static GuiRegistry registry;
     
     KeyboardFocusManager focusManager;
     
@@ -45,9 +46,9 @@ public class Channels_Plus implements PlugIn, PropertyChangeListener {
     public Channels_Plus() {
         
         //if (instance == null) instance = this;
-        // Initialise the gui_list
-        if (Channels_Plus.gui_list == null)
-            Channels_Plus.gui_list = new ArrayList<ChannelsPlusGUI>();
+        // Initialise the GUI registry
+        if (Channels_Plus.registry == null)
+            Channels_Plus.registry = new GuiRegistry();
         if (current_cpg != null && WindowManager.getCurrentImage() != null) {
             current_cpg.setVisible(true);
             WindowManager.addWindow(current_cpg);
@@ -73,23 +74,16 @@ public class Channels_Plus implements PlugIn, PropertyChangeListener {
     
     private ChannelsPlusGUI getChannelsPlusGUI(ImagePlus ci) {
         
-        ChannelsPlusGUI cpg;
-        // Get the CompositeImage's unique  ID...
-        int imageID = ci.getID();
-        // Iterate over gui_list...
-        for (int i = 0; i < gui_list.size(); i++) {
-            // Get the unique ID of this GUI's CompositeImage...
-            cpg = Channels_Plus.gui_list.get(i);
-            // Check for a match...
-            if (cpg.getImageID() == imageID) {
-                // We have a match - return the current GUI...
-                return cpg;
-            }
+        // Look up a GUI for the CompositeImage's unique ID...
+        ChannelsPlusGUI cpg = Channels_Plus.registry.get( ci.getID() );
+        if (cpg != null) {
+            // We have a match - return the current GUI...
+            return cpg;
         }
-        // The iterator finished without a match, so we need to create a GUI...
+        // No match, so we need to create a GUI...
         cpg = new ChannelsPlusGUI(ci, this);
-        // ...and add it to the list...
-        Channels_Plus.gui_list.add(cpg);
+        // ...and add it to the registry...
+        Channels_Plus.registry.put(cpg);
         // ...and finally return it...
         return cpg;
     }
@@ -97,7 +91,9 @@ public class Channels_Plus implements PlugIn, PropertyChangeListener {
     @Override
     public void propertyChange(PropertyChangeEvent e) {
         
+        long start = System.nanoTime();
         update();
+        Metrics.getInstance().record("plugin.update", start);
     }
     
     private void update() {
@@ -110,7 +106,7 @@ public class Channels_Plus implements PlugIn, PropertyChangeListener {
         // If current_cpg is null...
         if (current_cpg == null) {
             // ...get a current_gui...
-            current_cpg = getChannelsPlusGUI( (CompositeImage) imp );
+            current_cpg = getChannelsPlusGUI( imp );
             // ...and show it...
             current_cpg.setVisible(true);
 //            return;
@@ -140,6 +136,86 @@ public class Channels_Plus implements PlugIn, PropertyChangeListener {
         }
     }
     
+    /*
+     * Macro functions, which act on the current image and are called with
+     * call("com.grocottlab.channelsplus.Channels_Plus.<name>", ...). Each call
+     * makes all of its changes with one redraw, and returns an empty string,
+     * or an error message if nothing was changed. For example:
+     *
+     *   call("com.grocottlab.channelsplus.Channels_Plus.setChannels", "mute=2,3 lut=1:Fire range=1:100,4000");
+     */
+    
+    /** Applies a space-separated list of changes: mute=1,3 unmute=2 solo=2 composite lut=2:Fire range=1:100,4000 */
+    public static String setChannels(final String changes) {
+        
+        final ImagePlus imp = WindowManager.getCurrentImage();
+        if (imp == null)
+            return "No image";
+        final String[] error = {""};
+        Runnable commit = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new ChannelTransaction(imp).add(changes).commit();
+                } catch (IllegalArgumentException e) {
+                    error[0] = e.getMessage();
+                    return;
+                }
+                // Bring the image's dialog, if it has one, up to date...
+                ChannelsPlusGUI gui = registry != null ? registry.get( imp.getID() ) : null;
+                if (gui != null)
+                    gui.channelsChanged();
+            }
+        };
+        // Transactions, like the dialogs, belong to the event dispatch thread...
+        if (SwingUtilities.isEventDispatchThread()) {
+            commit.run();
+        } else {
+            try {
+                SwingUtilities.invokeAndWait(commit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "Interrupted";
+            } catch (InvocationTargetException e) {
+                return String.valueOf( e.getCause() );
+            }
+        }
+        return error[0];
+    }
+    
+    /** Mutes a comma-separated list of channels. */
+    public static String mute(String channels) {
+        return setChannels("mute=" + channels);
+    }
+    
+    public static String unmute(String channels) {
+        return setChannels("unmute=" + channels);
+    }
+    
+    /** Shows only the given channel, or returns to composite display for "0". */
+    public static String solo(String channel) {
+        return setChannels(channel.trim().equals("0") ? "composite" : "solo=" + channel.trim() );
+    }
+    
+    public static String setLut(String channel, String lut) {
+        return setChannels("lut=" + channel.trim() + ":" + lut.trim() );
+    }
+    
+    public static String setDisplayRange(String channel, String min, String max) {
+        return setChannels("range=" + channel.trim() + ":" + min.trim() + "," + max.trim() );
+    }
+    
+    /** Returns the current image's active channels as a string of 1s and 0s. */
+    public static String getActiveChannels() {
+        
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if (imp == null)
+            return "";
+        if (!imp.isComposite())
+            return "1";
+        return ChannelsPlusGUI.getMuteString( ((CompositeImage)imp).getActiveChannels() );
+    }
+    
     // Implement ImageListener methods...
     // Note that the reguar Channels tool doesn't implement ImageListener
     // This functionality may be covered via the update() method instead
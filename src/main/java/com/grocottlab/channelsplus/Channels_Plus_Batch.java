@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import java.io.File;
+import java.util.List;
+
+/**
+ * Auto-contrasts a folder of multichannel TIFFs, saving the results to
+ * another folder. See BatchAutoContrast.
+ *
+ * Runs as an ImageJ command, which can be recorded and called from macros,
+ * including in headless mode, or from the command line with
+ *
+ *     java -Djava.awt.headless=true -cp ij.jar:Channels_Plus.jar \
+ *         com.grocottlab.channelsplus.Channels_Plus_Batch input output [saturated] [luts]
+ *
+ * where luts is a comma-separated list of LUT names, one per channel.
+ *
+ * @author timothygrocott
+ */
+public class Channels_Plus_Batch implements PlugIn {
+
+    @Override
+    public void run(String arg) {
+
+        GenericDialog gd = new GenericDialog("Channels Plus Batch Auto-Contrast");
+        gd.addDirectoryField("Input folder", "");
+        gd.addDirectoryField("Output folder", "");
+        gd.addNumericField("Saturated pixels", AutoContrast.getSaturated(), 2, 5, "%");
+        gd.addStringField("LUTs (comma-separated, optional)", "");
+        gd.addNumericField("Threads", Runtime.getRuntime().availableProcessors(), 0);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        File input = new File( gd.getNextString() );
+        File output = new File( gd.getNextString() );
+        double saturated = gd.getNextNumber();
+        String luts = gd.getNextString();
+        int threads = (int)gd.getNextNumber();
+        BatchAutoContrast batch = new BatchAutoContrast(input, output, saturated, parseLuts(luts) );
+        if (threads > 0) batch.workers = threads;
+        run(batch);
+    }
+
+    /** Runs a batch, logging failures and a summary. Returns the number of images that failed. */
+    static int run(BatchAutoContrast batch) {
+
+        long start = System.currentTimeMillis();
+        List<BatchAutoContrast.Result> results;
+        try {
+            results = batch.run();
+        } catch (IllegalArgumentException e) {
+            IJ.error("Channels Plus Batch", e.getMessage() );
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            IJ.log("Channels Plus Batch: interrupted");
+            return -1;
+        }
+        int failed = 0;
+        for (BatchAutoContrast.Result result : results) {
+            if (!result.isSuccess()) {
+                IJ.log("Channels Plus Batch: " + result);
+                failed++;
+            }
+        }
+        IJ.log("Channels Plus Batch: " + (results.size() - failed) + " of " + results.size()
+               + " images saved to " + batch.output + " in " + IJ.d2s( (System.currentTimeMillis() - start)/1000.0, 1) + " s");
+        return failed;
+    }
+
+    static String[] parseLuts(String luts) {
+
+        if (luts == null || luts.trim().length() == 0)
+            return null;
+        return luts.split(",");
+    }
+
+    public static void main(String[] args) {
+
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 2) {
+            System.err.println("Usage: Channels_Plus_Batch input-folder output-folder [saturated-percent] [lut1,lut2,...]");
+            System.exit(1);
+        }
+        double saturated = args.length > 2 ? Double.parseDouble(args[2]) : AutoContrast.getSaturated();
+        String[] luts = args.length > 3 ? parseLuts(args[3]) : null;
+        int failed = run( new BatchAutoContrast(new File(args[0]), new File(args[1]), saturated, luts) );
+        System.exit(failed == 0 ? 0 : 2);
+    }
+}
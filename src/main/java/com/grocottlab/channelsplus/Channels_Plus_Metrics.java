@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.IJ;
+import ij.plugin.PlugIn;
+
+/**
+ * Writes the Channels Plus latency timers, counters and queue depths to the
+ * ImageJ log. Run with the argument "reset" to clear them afterwards, so the
+ * next report only covers what happens from then on.
+ *
+ * @author timothygrocott
+ */
+public class Channels_Plus_Metrics implements PlugIn {
+
+    @Override
+    public void run(String arg) {
+
+        Metrics metrics = Metrics.getInstance();
+        IJ.log( metrics.getReport() );
+        if ("reset".equals(arg))
+            metrics.reset();
+    }
+}
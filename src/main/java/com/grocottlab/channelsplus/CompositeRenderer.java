@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.LUT;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.swing.Timer;
+
+/**
+ * Optional replacement for CompositeImage's own rendering of composite
+ * images, for images with many channels.
+ *
+ * Each channel gets a table mapping its pixel values straight to RGB, with
+ * its LUT and display range folded in, rebuilt only when they change. Values
+ * are mapped with the same arithmetic as ByteProcessor, ShortProcessor and
+ * FloatProcessor, so the result matches CompositeImage pixel for pixel. The
+ * active channels are summed through their tables, a band of rows per
+ * fork/join task, straight into the RGB buffer CompositeImage paints the
+ * window from. While a single channel is being adjusted, the sum of the other
+ * channels is kept, and each redraw only adds the adjusted channel to it.
+ * Adding to a sum already clipped at 255 gives the same result as adding
+ * first and clipping after, so this is exact.
+ *
+ * During an interaction, such as a slider drag or a quick run of channel
+ * toggles, large images can be drawn as a preview instead: the same sum,
+ * taken over copies of the channels shrunk to about PREF_PREVIEW_PIXELS
+ * pixels by averaging blocks, which are made once per plane and kept, then
+ * blown back up to full size by repeating each pixel. The full resolution
+ * image is drawn when the interaction ends, or once nothing
+ * has been drawn for PREF_SETTLE milliseconds.
+ *
+ * The buffer is shown with ImagePlus.draw(), which repaints the window
+ * without CompositeImage compositing the channels again. Nothing is added
+ * to the image or its overlay, so saving, duplicating and flattening see
+ * only the user's own data. Whenever ImageJ composites the image itself,
+ * as it does on a change of slice or frame, its result is left on show and
+ * the next fast draw starts afresh. Images not in composite mode, virtual
+ * stacks, which keep just one plane in memory, and images whose display
+ * buffer is not the expected int RGB raster are left to ImageJ. All methods must be called on the event
+ * dispatch thread.
+ *
+ * @author timothygrocott
+ */
+class CompositeRenderer {
+
+    static final String PREF_ENABLED = "channelsplus.render.fast";
+    static final String PREF_PREVIEW = "channelsplus.render.preview";
+    static final String PREF_PREVIEW_PIXELS = "channelsplus.render.previewPixels";
+    static final String PREF_SETTLE = "channelsplus.render.settle";
+
+    private static final HashMap<Integer, CompositeRenderer> renderers = new HashMap<Integer, CompositeRenderer>();
+
+    private final CompositeImage ci;
+    private final int width;
+    private final int height;
+    private final int channels;
+    // Per-channel RGB tables, and the LUT and range they were built from...
+    private final int[][] tables;
+    private final LUT[] tableLuts;
+    private final double[] tableMin;
+    private final double[] tableMax;
+    // Float tables have 256 entries, indexed by (value - min)*scale rounded, as FloatProcessor does...
+    private final double[] floatMin;
+    private final double[] floatScale;
+    // Channels whose tables have changed since the last full resolution render...
+    private final BitSet dirty = new BitSet();
+    // Pixels and active channels last rendered at full resolution...
+    private final Object[] pixels;
+    private final boolean[] active;
+    // CompositeImage's own display buffer, as of the last render...
+    private int[] rgb;
+    // Sum of every active channel except baseChannel, or none if baseChannel is -1...
+    private int[] base;
+    private int baseChannel = -1;
+    private boolean stale = true;
+    // Shrunk copies of each channel's plane, and the planes they were made from...
+    private final int previewScale;
+    private final int previewWidth;
+    private final int previewHeight;
+    private final Object[] previewPixels;
+    private final Object[] previewSources;
+    private int[] previewRgb;
+    // Whether the full resolution image has been overwritten by a preview since it was rendered...
+    private boolean previewed;
+    private final Timer settleTimer;
+    private long lastDrawn;
+
+    private CompositeRenderer(CompositeImage ci) {
+
+        this.ci = ci;
+        width = ci.getWidth();
+        height = ci.getHeight();
+        channels = ci.getNChannels();
+        tables = new int[channels][];
+        tableLuts = new LUT[channels];
+        tableMin = new double[channels];
+        tableMax = new double[channels];
+        floatMin = new double[channels];
+        floatScale = new double[channels];
+        pixels = new Object[channels];
+        active = new boolean[channels];
+        // Shrink by whole blocks, enough to bring the plane down to the preview size...
+        double previewPixelCount = Math.max(1, Prefs.get(PREF_PREVIEW_PIXELS, 1 << 20) );
+        previewScale = Math.max(1, (int)Math.ceil( Math.sqrt( (double)width*height/previewPixelCount ) ) );
+        previewWidth = (width + previewScale - 1)/previewScale;
+        previewHeight = (height + previewScale - 1)/previewScale;
+        previewPixels = new Object[channels];
+        previewSources = new Object[channels];
+        settleTimer = new Timer((int)Prefs.get(PREF_SETTLE, 300), new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                draw(CompositeRenderer.this.ci, false);
+            }
+        });
+        settleTimer.setRepeats(false);
+    }
+
+    static boolean isEnabled() {
+        return Prefs.get(PREF_ENABLED, false);
+    }
+
+    static void setEnabled(boolean enabled) {
+        Prefs.set(PREF_ENABLED, enabled);
+    }
+
+    static boolean isPreviewEnabled() {
+        return Prefs.get(PREF_PREVIEW, true);
+    }
+
+    static void setPreviewEnabled(boolean enabled) {
+        Prefs.set(PREF_PREVIEW, enabled);
+    }
+
+    /** Draws an image at full resolution through the fast path, as draw(imp, false) does. */
+    static boolean draw(ImagePlus imp) {
+        return draw(imp, false);
+    }
+
+    /**
+     * Draws an image through the fast path, returning false if it should be
+     * left to ImageJ, in which case any fast rendering still on show is taken
+     * away and the caller has to redraw the image itself. A preview is drawn
+     * if asked for and the image is large enough to need one, and the full
+     * resolution image follows once drawing settles.
+     */
+    static boolean draw(ImagePlus imp, boolean preview) {
+
+        CompositeRenderer renderer = renderers.get( imp.getID() );
+        if (!isEnabled() || !imp.isComposite() || ((CompositeImage)imp).getMode() != CompositeImage.COMPOSITE
+                || imp.getStack().isVirtual() || imp.getBitDepth() == 24) {
+            if (renderer != null) {
+                renderers.remove( imp.getID() );
+                renderer.detach();
+            }
+            return false;
+        }
+        if (renderer == null) {
+            renderer = new CompositeRenderer( (CompositeImage)imp );
+            renderers.put(imp.getID(), renderer);
+        }
+        int[] buffer = renderer.getDisplayBuffer();
+        if (buffer == null) {
+            renderers.remove( imp.getID() );
+            renderer.detach();
+            return false;
+        }
+        long start = System.nanoTime();
+        if (preview && isPreviewEnabled() && renderer.previewScale > 1) {
+            renderer.renderPreview(buffer);
+            renderer.settleTimer.restart();
+            imp.draw();
+            Metrics.getInstance().record("render.preview", start);
+        } else {
+            renderer.settleTimer.stop();
+            renderer.render(buffer);
+            imp.draw();
+            Metrics.getInstance().record("render.composite", start);
+        }
+        renderer.lastDrawn = System.currentTimeMillis();
+        return true;
+    }
+
+    /** Returns whether an image was drawn by the fast path too recently for drawing to have settled. */
+    static boolean isInteracting(ImagePlus imp) {
+
+        CompositeRenderer renderer = renderers.get( imp.getID() );
+        return renderer != null
+                && System.currentTimeMillis() - renderer.lastDrawn < renderer.settleTimer.getInitialDelay();
+    }
+
+    /**
+     * Forgets what was last rendered for an image that ImageJ has redrawn
+     * itself, after it was changed behind our back. ImageJ's own rendering is
+     * up to date, so nothing is drawn again; the next fast draw starts afresh.
+     */
+    static void imageUpdated(ImagePlus imp) {
+
+        CompositeRenderer renderer = renderers.get( imp.getID() );
+        if (renderer == null)
+            return;
+        renderer.settleTimer.stop();
+        renderer.stale = true;
+        renderer.previewed = false;
+        renderer.baseChannel = -1;
+        for (int c = 0; c < renderer.channels; c++)
+            renderer.previewSources[c] = null;
+    }
+
+    static void remove(int imageID) {
+
+        CompositeRenderer renderer = renderers.remove(imageID);
+        if (renderer != null) renderer.settleTimer.stop();
+    }
+
+    /** Renders the image at full resolution, redoing as little as the changes since the last render allow. */
+    private void render(int[] buffer) {
+
+        ImageStack stack = ci.getStack();
+        boolean[] nowActive = ci.getActiveChannels();
+        int z = ci.getZ();
+        int t = ci.getT();
+        // Work out what has changed since the last render...
+        boolean full = stale || buffer != rgb;
+        for (int c = 0; c < channels; c++) {
+            Object p = stack.getPixels( ci.getStackIndex(c+1, z, t) );
+            if (p != pixels[c] || nowActive[c] != active[c]) full = true;
+            pixels[c] = p;
+            active[c] = nowActive[c];
+            updateTable(c);
+        }
+        int changed = dirty.nextSetBit(0);
+        int nChanged = dirty.cardinality();
+        dirty.clear();
+        stale = false;
+        rgb = buffer;
+        // A preview drawn since the last render leaves the sum of all but the adjusted channel to add it to again...
+        if (!full && nChanged == 0 && previewed && baseChannel >= 0) {
+            changed = baseChannel;
+            nChanged = 1;
+        }
+        if (!full && !previewed && (nChanged == 0 || (nChanged == 1 && !active[changed]) )) {
+            // Nothing to redo, or only a hidden channel changed
+        } else if (!full && nChanged == 1 && active[changed]) {
+            // Add the one channel that changed to the sum of all the others...
+            if (baseChannel != changed) {
+                if (base == null) base = new int[width*height];
+                blend(pixels, width, height, getActiveList(active, changed), null, base);
+                baseChannel = changed;
+                Metrics.getInstance().count("render.baseRebuilds");
+            }
+            blend(pixels, width, height, new int[] {changed}, base, rgb);
+        } else {
+            blend(pixels, width, height, getActiveList(active, -1), null, rgb);
+            baseChannel = -1;
+        }
+        previewed = false;
+    }
+
+    /** Renders the image from the shrunk channels, shrinking any planes not seen before. */
+    private void renderPreview(int[] buffer) {
+
+        ImageStack stack = ci.getStack();
+        boolean[] nowActive = ci.getActiveChannels();
+        int z = ci.getZ();
+        int t = ci.getT();
+        for (int c = 0; c < channels; c++) {
+            updateTable(c);
+            if (!nowActive[c])
+                continue;
+            Object p = stack.getPixels( ci.getStackIndex(c+1, z, t) );
+            if (p != previewSources[c]) {
+                previewPixels[c] = shrink(p);
+                previewSources[c] = p;
+                Metrics.getInstance().count("render.previewShrinks");
+            }
+        }
+        if (previewRgb == null)
+            previewRgb = new int[previewWidth*previewHeight];
+        blend(previewPixels, previewWidth, previewHeight, getActiveList(nowActive, -1), null, previewRgb);
+        // A new buffer holds none of our last render, so the next one has to start afresh...
+        if (buffer != rgb) stale = true;
+        rgb = buffer;
+        enlarge(previewRgb, rgb);
+        previewed = true;
+    }
+
+    /** Blows the preview up to full size, repeating each pixel previewScale times across and down. */
+    private void enlarge(final int[] from, final int[] to) {
+
+        final int s = previewScale;
+        runBands(height, width, new Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    int row = y*width;
+                    // Rows within a block are copies of the first one in the band...
+                    if (y > y0 && y % s != 0) {
+                        System.arraycopy(to, row - width, to, row, width);
+                        continue;
+                    }
+                    int source = (y/s)*previewWidth;
+                    for (int x = 0; x < width; x++)
+                        to[row + x] = from[source + x/s];
+                }
+            }
+        });
+    }
+
+    /** Rebuilds a channel's table if its LUT or display range has changed, marking it dirty if it did. */
+    private void updateTable(int c) {
+
+        LUT lut = ChannelAccess.getLut(ci, c+1);
+        double min = ChannelAccess.getDisplayRangeMin(ci, c+1);
+        double max = ChannelAccess.getDisplayRangeMax(ci, c+1);
+        if (tables[c] != null && lut == tableLuts[c] && min == tableMin[c] && max == tableMax[c])
+            return;
+        tableLuts[c] = lut;
+        tableMin[c] = min;
+        tableMax[c] = max;
+        dirty.set(c);
+        int[] colours = new int[256];
+        int mapSize = lut.getMapSize();
+        for (int i = 0; i < 256; i++) {
+            int index = Math.min(i, mapSize-1);
+            colours[i] = (lut.getRed(index) << 16) | (lut.getGreen(index) << 8) | lut.getBlue(index);
+        }
+        int bitDepth = ci.getBitDepth();
+        if (bitDepth == 32) {
+            // Floats are scaled into the 256 LUT entries as each pixel is drawn...
+            tables[c] = colours;
+            floatMin[c] = min;
+            floatScale[c] = 255.0/(max - min);
+            return;
+        }
+        // ...while 8 and 16-bit values index a table with the range already applied, with ByteProcessor's and ShortProcessor's arithmetic
+        int size = bitDepth == 8 ? 256 : 65536;
+        int[] table = tables[c] != null && tables[c].length == size ? tables[c] : new int[size];
+        if (bitDepth == 8) {
+            int offset = (int)Math.round(min);
+            for (int v = 0; v < size; v++) {
+                int index = v < min ? 0 : v > max ? 255 : (int)( 256.0*(v - offset)/(max - min) );
+                table[v] = colours[index < 0 ? 0 : index > 255 ? 255 : index];
+            }
+        } else {
+            int low = (int)min;
+            double scale = 256.0/( (int)max - low + 1 );
+            for (int v = 0; v < size; v++) {
+                int index = (int)( Math.max(0, v - low)*scale + 0.5 );
+                table[v] = colours[index > 255 ? 255 : index];
+            }
+        }
+        tables[c] = table;
+    }
+
+    /** Returns the active channels, leaving out skip. */
+    private int[] getActiveList(boolean[] active, int skip) {
+
+        int n = 0;
+        for (int c = 0; c < channels; c++)
+            if (active[c] && c != skip) n++;
+        int[] list = new int[n];
+        n = 0;
+        for (int c = 0; c < channels; c++)
+            if (active[c] && c != skip) list[n++] = c;
+        return list;
+    }
+
+    /** Sums the listed channels of planes w pixels wide into out, starting from start if it isn't null. */
+    private void blend(final Object[] planes, final int w, int h, final int[] list, final int[] start, final int[] out) {
+
+        runBands(h, w, new Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                blendRows(planes, w, list, start, out, y0, y1);
+            }
+        });
+    }
+
+    /** Sums channels into rows [y0, y1) of out, one pixel at a time. */
+    private void blendRows(Object[] planes, int w, int[] list, int[] start, int[] out, int y0, int y1) {
+
+        int from = y0*w;
+        int to = y1*w;
+        int n = list.length;
+        int[][] table = new int[n][];
+        for (int j = 0; j < n; j++) table[j] = tables[ list[j] ];
+        Object first = n > 0 ? planes[ list[0] ] : null;
+        for (int i = from; i < to; i++) {
+            int r = 0, g = 0, b = 0;
+            if (start != null) {
+                int s = start[i];
+                r = (s >> 16) & 0xff;
+                g = (s >> 8) & 0xff;
+                b = s & 0xff;
+            }
+            if (first instanceof byte[]) {
+                for (int j = 0; j < n; j++) {
+                    int c = table[j][ ((byte[])planes[ list[j] ])[i] & 0xff ];
+                    r += (c >> 16) & 0xff;
+                    g += (c >> 8) & 0xff;
+                    b += c & 0xff;
+                }
+            } else if (first instanceof short[]) {
+                for (int j = 0; j < n; j++) {
+                    int c = table[j][ ((short[])planes[ list[j] ])[i] & 0xffff ];
+                    r += (c >> 16) & 0xff;
+                    g += (c >> 8) & 0xff;
+                    b += c & 0xff;
+                }
+            } else if (first instanceof float[]) {
+                for (int j = 0; j < n; j++) {
+                    int k = list[j];
+                    double d = ( (float[])planes[k] )[i] - floatMin[k];
+                    // NaN, like FloatProcessor, comes out as index 0...
+                    int index = (int)( (d < 0 ? 0 : d)*floatScale[k] + 0.5 );
+                    int c = table[j][index > 255 ? 255 : index];
+                    r += (c >> 16) & 0xff;
+                    g += (c >> 8) & 0xff;
+                    b += c & 0xff;
+                }
+            }
+            out[i] = ( (r > 255 ? 255 : r) << 16 ) | ( (g > 255 ? 255 : g) << 8 ) | (b > 255 ? 255 : b);
+        }
+    }
+
+    /** Returns a plane shrunk by previewScale, each pixel the mean of a block, cut short at the right and bottom edges. */
+    private Object shrink(final Object plane) {
+
+        final int s = previewScale;
+        final int w = previewWidth;
+        final Object out;
+        if (plane instanceof byte[]) {
+            out = new byte[w*previewHeight];
+        } else if (plane instanceof short[]) {
+            out = new short[w*previewHeight];
+        } else {
+            out = new float[w*previewHeight];
+        }
+        runBands(previewHeight, width*s, new Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                double[] sums = new double[w];
+                for (int py = y0; py < y1; py++) {
+                    Arrays.fill(sums, 0);
+                    int yEnd = Math.min(height, (py + 1)*s);
+                    for (int y = py*s; y < yEnd; y++) {
+                        int row = y*width;
+                        // Add the row a block at a time, so the type is only tested once a row...
+                        for (int px = 0, x = 0; px < w; px++) {
+                            int xEnd = Math.min(width, x + s);
+                            double sum = 0;
+                            if (plane instanceof byte[]) {
+                                byte[] p = (byte[])plane;
+                                for (; x < xEnd; x++) sum += p[row + x] & 0xff;
+                            } else if (plane instanceof short[]) {
+                                short[] p = (short[])plane;
+                                for (; x < xEnd; x++) sum += p[row + x] & 0xffff;
+                            } else {
+                                float[] p = (float[])plane;
+                                for (; x < xEnd; x++) sum += p[row + x];
+                            }
+                            sums[px] += sum;
+                        }
+                    }
+                    int blockHeight = yEnd - py*s;
+                    for (int px = 0; px < w; px++) {
+                        double mean = sums[px]/( blockHeight*(Math.min(width, (px + 1)*s) - px*s) );
+                        if (out instanceof byte[]) {
+                            ((byte[])out)[py*w + px] = (byte)(int)(mean + 0.5);
+                        } else if (out instanceof short[]) {
+                            ((short[])out)[py*w + px] = (short)(int)(mean + 0.5);
+                        } else {
+                            ((float[])out)[py*w + px] = (float)mean;
+                        }
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    /** Runs rows [0, h) through the common fork/join pool in bands, or all at once if there are too few pixels to share out. */
+    private static void runBands(int h, int pixelsPerRow, Rows rows) {
+
+        int tile = HistogramKernel.getTileSize( (long)h*pixelsPerRow > Integer.MAX_VALUE ? Integer.MAX_VALUE : h*pixelsPerRow );
+        int band = Math.max(1, tile/Math.max(1, pixelsPerRow) );
+        if (band >= h) {
+            rows.rows(0, h);
+        } else {
+            ForkJoinPool.commonPool().invoke( new Bands(rows, 0, h, band) );
+        }
+    }
+
+    /**
+     * Returns the pixels of the RGB image CompositeImage paints the window
+     * from, or null if it is not an int RGB raster the size of the image.
+     */
+    private int[] getDisplayBuffer() {
+
+        Image img = ci.getImage();
+        if (!(img instanceof BufferedImage))
+            return null;
+        DataBuffer buffer = ((BufferedImage)img).getRaster().getDataBuffer();
+        if (!(buffer instanceof DataBufferInt) || buffer.getSize() != width*height)
+            return null;
+        return ((DataBufferInt)buffer).getData();
+    }
+
+    /** Lets go of the buffers kept between renders; the caller redraws the image through ImageJ. */
+    private void detach() {
+
+        settleTimer.stop();
+        rgb = null;
+        base = null;
+        previewRgb = null;
+    }
+
+    /** Work done a band of rows at a time. */
+    interface Rows {
+        void rows(int y0, int y1);
+    }
+
+    /** Runs a band of rows, splitting it in two until it is no taller than a band. */
+    private static class Bands extends RecursiveAction {
+
+        final Rows rows;
+        final int y0, y1, band;
+
+        Bands(Rows rows, int y0, int y1, int band) {
+            this.rows = rows;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (y1 - y0 <= band) {
+                rows.rows(y0, y1);
+                return;
+            }
+            int mid = (y0 + y1) >>> 1;
+            invokeAll( new Bands(rows, y0, mid, band), new Bands(rows, mid, y1, band) );
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.ImagePlus;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.Timer;
+
+/**
+ * Applies display range changes to an image at most once per frame.
+ *
+ * While a slider is being dragged, range changes are only recorded, with the
+ * latest range for each channel replacing any earlier one, and a single
+ * redraw is scheduled for the end of the current frame interval. Images
+ * drawn by the CompositeRenderer are drawn as a reduced resolution preview
+ * during the drag. When the drag ends the final range is applied and drawn
+ * straight away, at full resolution. All methods
+ * must be called on the event dispatch thread.
+ *
+ * @author timothygrocott
+ */
+class DisplayUpdater {
+
+    static final int FRAME_INTERVAL_MS = 16;
+
+    private static final HashMap<Integer, DisplayUpdater> updaters = new HashMap<Integer, DisplayUpdater>();
+
+    private final ImagePlus imp;
+    // Latest requested {min, max} per channel, not yet applied...
+    private final LinkedHashMap<Integer, double[]> pending = new LinkedHashMap<Integer, double[]>();
+    private final Timer timer;
+    private long lastDrawn;
+    // Whether the latest change came from a slider still being dragged...
+    private boolean adjusting;
+
+    private DisplayUpdater(ImagePlus imp) {
+
+        this.imp = imp;
+        timer = new Timer(FRAME_INTERVAL_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                flush();
+            }
+        });
+        timer.setRepeats(false);
+    }
+
+    static DisplayUpdater get(ImagePlus imp) {
+
+        DisplayUpdater updater = updaters.get( imp.getID() );
+        if (updater == null) {
+            updater = new DisplayUpdater(imp);
+            updaters.put(imp.getID(), updater);
+        }
+        return updater;
+    }
+
+    static void remove(int imageID) {
+
+        DisplayUpdater updater = updaters.remove(imageID);
+        if (updater != null) updater.timer.stop();
+    }
+
+    /**
+     * Requests a new display range for a channel. While adjusting, the redraw
+     * is deferred to the next frame; otherwise any pending changes are applied
+     * and drawn immediately.
+     */
+    void setDisplayRange(int channel, double min, double max, boolean adjusting) {
+
+        // A range still waiting to be drawn is simply replaced...
+        if (pending.remove(channel) != null)
+            Metrics.getInstance().count("display.coalesced");
+        pending.put(channel, new double[] {min, max});
+        this.adjusting = adjusting;
+        if (!adjusting) {
+            flush();
+        } else if (!timer.isRunning()) {
+            long wait = FRAME_INTERVAL_MS - (System.currentTimeMillis() - lastDrawn);
+            timer.setInitialDelay( (int)Math.max(0, wait) );
+            timer.start();
+        }
+    }
+
+    boolean isPending(int channel) {
+        return pending.containsKey(channel);
+    }
+
+    /** Applies all pending range changes with a single redraw. */
+    void flush() {
+
+        timer.stop();
+        if (pending.isEmpty())
+            return;
+        long start = System.nanoTime();
+        HistogramCache.getInstance().beginDisplayUpdate( imp.getID() );
+        long drawStart;
+        try {
+            int currentChannel = imp.getC();
+            boolean onlyCurrent = true;
+            Iterator<Map.Entry<Integer, double[]>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, double[]> entry = it.next();
+                int channel = entry.getKey();
+                double[] range = entry.getValue();
+                if (channel != currentChannel) onlyCurrent = false;
+                ChannelAccess.setDisplayRange(imp, channel, range[0], range[1]);
+                it.remove();
+            }
+            drawStart = System.nanoTime();
+            if (CompositeRenderer.draw(imp, adjusting)) {
+                // Drawn by the fast composite renderer, as a preview while the slider is still moving
+            } else if (onlyCurrent) {
+                imp.updateChannelAndDraw();
+            } else {
+                imp.updateAndDraw();
+            }
+        } finally {
+            HistogramCache.getInstance().endDisplayUpdate( imp.getID() );
+        }
+        lastDrawn = System.currentTimeMillis();
+        Metrics metrics = Metrics.getInstance();
+        metrics.record("display.draw", drawStart);
+        metrics.record("display.flush", start);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.Prefs;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.SwingUtilities;
+
+/**
+ * Keeps one ChannelsPlusGUI per open image, indexed by image ID.
+ *
+ * When an image is closed its GUI is disposed, taking its histograms' image
+ * listeners with it, and everything else held for the image is dropped, so
+ * nothing keeps the image's planes reachable. Optionally, only the most
+ * recently used hidden GUIs are kept ready; older ones are disposed and
+ * rebuilt if their image comes back into focus.
+ *
+ * Images can be closed from any thread, such as a macro's, so GUIs are
+ * disposed, and everything held for their images dropped, on the event
+ * dispatch thread. A closing image's display settings are taken straight
+ * away, though, as the image is flushed as soon as its listeners return.
+ *
+ * @author timothygrocott
+ */
+class GuiRegistry implements ImageListener {
+
+    // Maximum number of hidden GUIs kept ready, or 0 for no limit...
+    static final String PREF_WARM = "channelsplus.gui.warm";
+
+    // In least- to most-recently used order...
+    private final LinkedHashMap<Integer, ChannelsPlusGUI> guis = new LinkedHashMap<Integer, ChannelsPlusGUI>(16, 0.75f, true);
+
+    GuiRegistry() {
+
+        ImagePlus.addImageListener(this);
+    }
+
+    /** Returns the GUI for an image, or null if there is none. */
+    synchronized ChannelsPlusGUI get(int imageID) {
+
+        return guis.get(imageID);
+    }
+
+    synchronized void put(ChannelsPlusGUI gui) {
+
+        ChannelsPlusGUI old = guis.put(gui.getImageID(), gui);
+        if (old != null && old != gui) dispose(old);
+        trim();
+    }
+
+    synchronized int size() {
+
+        return guis.size();
+    }
+
+    /** Disposes the GUI for an image and drops everything held for it, on the event dispatch thread. */
+    void remove(final int imageID) {
+
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    remove(imageID);
+                }
+            });
+            return;
+        }
+        ChannelsPlusGUI gui;
+        synchronized (this) {
+            gui = guis.remove(imageID);
+        }
+        if (gui != null) dispose(gui);
+        HistogramEngine.getInstance().cancel(imageID);
+        HistogramCache.getInstance().remove(imageID);
+        DisplayUpdater.remove(imageID);
+        MetadataIndex.remove(imageID);
+        SettingsStore.getInstance().remove(imageID);
+        ImageDispatcher.remove(imageID);
+    }
+
+    /** Disposes hidden GUIs beyond the configured number, least recently used first. */
+    private synchronized void trim() {
+
+        int warm = (int)Prefs.get(PREF_WARM, 0);
+        if (warm <= 0)
+            return;
+        int hidden = 0;
+        for (ChannelsPlusGUI gui : guis.values())
+            if (!gui.isVisible()) hidden++;
+        ArrayList<ChannelsPlusGUI> evicted = new ArrayList<ChannelsPlusGUI>();
+        Iterator<Map.Entry<Integer, ChannelsPlusGUI>> it = guis.entrySet().iterator();
+        while (hidden > warm && it.hasNext()) {
+            ChannelsPlusGUI gui = it.next().getValue();
+            if (!gui.isVisible() && gui != Channels_Plus.current_cpg) {
+                it.remove();
+                evicted.add(gui);
+                hidden--;
+            }
+        }
+        for (ChannelsPlusGUI gui : evicted)
+            dispose(gui);
+    }
+
+    /** Saves a GUI's settings and disposes of it, on the event dispatch thread. */
+    private void dispose(final ChannelsPlusGUI gui) {
+
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    dispose(gui);
+                }
+            });
+            return;
+        }
+        if (Channels_Plus.current_cpg == gui)
+            Channels_Plus.current_cpg = null;
+        gui.saveSettings();
+        gui.dispose();
+    }
+
+    @Override
+    public void imageOpened(ImagePlus imp) {
+    }
+
+    @Override
+    public void imageClosed(ImagePlus imp) {
+
+        // The image is flushed once this returns, so take its settings while it still has them...
+        ChannelsPlusGUI gui = get( imp.getID() );
+        if (gui != null)
+            gui.captureSettings();
+        remove( imp.getID() );
+    }
+
+    @Override
+    public void imageUpdated(ImagePlus imp) {
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.Prefs;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.SwingUtilities;
+
+/**
+ * Least-recently-used cache of channel histograms, bounded by memory.
+ *
+ * Entries are keyed by image ID, channel, slice, frame and a pixel-data
+ * version, and always cover the whole plane. Slice and frame 0 stand for a
+ * channel's whole stack. Versions are bumped for a whole image, or
+ * for one plane and its channel's stack histogram, whenever their pixels
+ * may have changed, so a histogram computed from the old pixels is never
+ * stored or looked up again. Display range, LUT and mute changes made
+ * through Channels Plus are marked as display-only updates and leave it
+ * untouched.
+ *
+ * @author timothygrocott
+ */
+class HistogramCache {
+
+    static final String PREF_CAP = "channelsplus.histogram.cache.mb";
+    // Rough per-entry bookkeeping overhead (key, map entry, array header)...
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private static HistogramCache instance;
+
+    private final LinkedHashMap<Key, HistogramData> entries = new LinkedHashMap<Key, HistogramData>(64, 0.75f, true);
+    // Pixel-data versions by image, and of the planes changed since, by plane(c, z, t)...
+    private final HashMap<Integer, Long> versions = new HashMap<Integer, Long>();
+    private final HashMap<Integer, HashMap<Long, Long>> planeVersions = new HashMap<Integer, HashMap<Long, Long>>();
+    // Last version handed out, so that no version is ever reused...
+    private long lastVersion;
+    // Display-only updates in progress per image. Only touched on the event dispatch thread...
+    private final HashMap<Integer, Integer> displayUpdates = new HashMap<Integer, Integer>();
+    private long memoryCap;
+    private long memoryUsed;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private HistogramCache() {
+
+        memoryCap = (long)( Prefs.get(PREF_CAP, 64) * 1024 * 1024 );
+    }
+
+    static synchronized HistogramCache getInstance() {
+
+        if (instance == null) instance = new HistogramCache();
+        return instance;
+    }
+
+    synchronized HistogramData get(Key key) {
+
+        HistogramData hist = entries.get(key);
+        if (hist == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return hist;
+    }
+
+    synchronized void put(Key key, HistogramData hist) {
+
+        if (hist == null || key.version != getVersion(key.imageID, key.c, key.z, key.t) )
+            return;
+        HistogramData old = entries.put(key, hist);
+        if (old != null) memoryUsed -= sizeOf(old);
+        memoryUsed += sizeOf(hist);
+        trim();
+    }
+
+    /** Returns whether a histogram is cached, without counting a hit or miss or making it recently used. */
+    synchronized boolean contains(Key key) {
+        return entries.containsKey(key);
+    }
+
+    /** Returns the approximate memory taken by a cached histogram of the given number of bins. */
+    static long sizeOf(int bins) {
+        return ENTRY_OVERHEAD + 4L*bins;
+    }
+
+    /** Returns the current pixel-data version of one plane of an image, or of a channel's stack for slice and frame 0. */
+    synchronized long getVersion(int imageID, int c, int z, int t) {
+
+        HashMap<Long, Long> planes = planeVersions.get(imageID);
+        Long version = planes == null ? null : planes.get( plane(c, z, t) );
+        if (version == null) version = versions.get(imageID);
+        return version == null ? 0 : version;
+    }
+
+    /** Marks an image's pixel data as changed, so none of its cached histograms are used again. */
+    synchronized void invalidate(int imageID) {
+
+        versions.put(imageID, ++lastVersion);
+        planeVersions.remove(imageID);
+        removeEntries(imageID, -1, -1, -1);
+    }
+
+    /** Marks one plane's pixel data as changed, along with its channel's stack histogram. */
+    synchronized void invalidate(int imageID, int c, int z, int t) {
+
+        HashMap<Long, Long> planes = planeVersions.get(imageID);
+        if (planes == null) {
+            planes = new HashMap<Long, Long>();
+            planeVersions.put(imageID, planes);
+        }
+        long version = ++lastVersion;
+        planes.put(plane(c, z, t), version);
+        planes.put(plane(c, 0, 0), version);
+        removeEntries(imageID, c, z, t);
+        removeEntries(imageID, c, 0, 0);
+    }
+
+    /** Drops everything held for an image, e.g. when it is closed. */
+    synchronized void remove(int imageID) {
+
+        versions.remove(imageID);
+        planeVersions.remove(imageID);
+        removeEntries(imageID, -1, -1, -1);
+    }
+
+    /**
+     * Marks the start of an update that only changes how an image is
+     * displayed. Image listeners receiving the resulting events can check
+     * isDisplayUpdate() and keep their cached histograms.
+     */
+    void beginDisplayUpdate(int imageID) {
+
+        Integer count = displayUpdates.get(imageID);
+        displayUpdates.put(imageID, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Marks the end of a display-only update. Image events are posted to the
+     * event queue, so the mark is only lifted once those already queued have
+     * been handled.
+     */
+    void endDisplayUpdate(final int imageID) {
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                Integer count = displayUpdates.get(imageID);
+                if (count == null || count <= 1) {
+                    displayUpdates.remove(imageID);
+                } else {
+                    displayUpdates.put(imageID, count - 1);
+                }
+            }
+        });
+    }
+
+    boolean isDisplayUpdate(int imageID) {
+
+        return displayUpdates.containsKey(imageID);
+    }
+
+    synchronized void setMemoryCap(long bytes) {
+
+        memoryCap = bytes;
+        trim();
+    }
+
+    synchronized long getMemoryCap() {
+        return memoryCap;
+    }
+
+    synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized String getStatistics() {
+
+        long lookups = hits + misses;
+        return "Histogram cache: " + entries.size() + " entries, "
+                + (memoryUsed/1024) + "/" + (memoryCap/1024) + " KB, "
+                + hits + " hits, " + misses + " misses ("
+                + (lookups == 0 ? 0 : (100*hits)/lookups) + "% hit rate), "
+                + evictions + " evictions";
+    }
+
+    private void trim() {
+
+        // Evict least recently used entries until we are back under the cap...
+        Iterator<Map.Entry<Key, HistogramData>> it = entries.entrySet().iterator();
+        while (memoryUsed > memoryCap && it.hasNext()) {
+            memoryUsed -= sizeOf( it.next().getValue() );
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /** Removes an image's entries for one plane, or for every plane if c is -1. */
+    private void removeEntries(int imageID, int c, int z, int t) {
+
+        Iterator<Map.Entry<Key, HistogramData>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, HistogramData> entry = it.next();
+            Key key = entry.getKey();
+            if (key.imageID == imageID && (c < 0 || (key.c == c && key.z == z && key.t == t) )) {
+                memoryUsed -= sizeOf( entry.getValue() );
+                it.remove();
+            }
+        }
+    }
+
+    private static long plane(int c, int z, int t) {
+        return ((long)c << 42) | ((long)z << 21) | t;
+    }
+
+    private static long sizeOf(HistogramData hist) {
+        return sizeOf(hist.counts.length);
+    }
+
+    /** Identifies one histogram: a whole plane of an image, at a given pixel-data version and bin count. */
+    static class Key {
+
+        final int imageID;
+        final int c;
+        final int z;
+        final int t;
+        final long version;
+        final int bins;
+
+        Key(int imageID, int c, int z, int t, long version, int bins) {
+            this.imageID = imageID;
+            this.c = c;
+            this.z = z;
+            this.t = t;
+            this.version = version;
+            this.bins = bins;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return imageID == k.imageID && c == k.c && z == k.z && t == k.t
+                    && version == k.version && bins == k.bins;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = imageID;
+            h = 31*h + c;
+            h = 31*h + z;
+            h = 31*h + t;
+            h = 31*h + (int)(version ^ (version >>> 32));
+            h = 31*h + bins;
+            return h;
+        }
+    }
+}
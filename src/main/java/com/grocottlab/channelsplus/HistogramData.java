@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+/**
+ * A channel histogram together with the pixel value range its bins cover.
+ *
+ * Bin i counts values in [min + i*binWidth, min + (i+1)*binWidth), with the
+ * largest value always falling in the last bin. Instances are shared through
+ * the HistogramCache, so the counts must never be modified. Approximate
+ * histograms are built from a subsample of the pixels, with counts scaled
+ * up to the full plane, and are never cached.
+ *
+ * @author timothygrocott
+ */
+class HistogramData {
+
+    final int[] counts;
+    // Value range covered by the bins...
+    final double min;
+    final double max;
+    // Smallest and largest pixel values actually found...
+    final double dataMin;
+    final double dataMax;
+    final boolean approximate;
+
+    HistogramData(int[] counts, double min, double max, double dataMin, double dataMax) {
+        this(counts, min, max, dataMin, dataMax, false);
+    }
+
+    HistogramData(int[] counts, double min, double max, double dataMin, double dataMax, boolean approximate) {
+        this.counts = counts;
+        this.min = min;
+        this.max = max;
+        this.dataMin = dataMin;
+        this.dataMax = dataMax;
+        this.approximate = approximate;
+    }
+
+    int getBins() {
+        return counts.length;
+    }
+
+    double getBinWidth() {
+        return (max - min)/counts.length;
+    }
+
+    /** Returns the pixel value at the lower edge of a (fractional) bin position. */
+    double getValue(double bin) {
+        return min + bin*getBinWidth();
+    }
+
+    /** Returns the (fractional) bin position of a pixel value. */
+    double getBin(double value) {
+        return (value - min)/getBinWidth();
+    }
+
+    long getPixelCount() {
+        long n = 0;
+        for (int i = 0; i < counts.length; i++) n += counts[i];
+        return n;
+    }
+
+    /**
+     * Returns the pixel value below which the given fraction of pixels lie,
+     * read from the cumulative counts and interpolated within the bin it
+     * falls in. The result is kept within the values actually found.
+     */
+    double getPercentile(double fraction) {
+        long total = getPixelCount();
+        if (total == 0)
+            return min;
+        double target = Math.max(0, Math.min(1, fraction))*total;
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0 && cumulative + counts[i] >= target) {
+                double value = getValue( i + (target - cumulative)/counts[i] );
+                return Math.max(dataMin, Math.min(dataMax, value) );
+            }
+            cumulative += counts[i];
+        }
+        return dataMax;
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.SwingUtilities;
+
+/**
+ * Computes channel histograms on a small pool of background threads.
+ *
+ * Requests are coalesced per image/channel: if a new request arrives before
+ * an older one for the same channel has started, the older one is dropped,
+ * and results that have been overtaken by a newer request are never
+ * delivered. Finished histograms are handed back on the event dispatch thread
+ * and kept in the HistogramCache, so that asking again for a plane whose
+ * pixels have not changed never touches pixel data.
+ *
+ * Whole-stack histograms stream through every plane of a channel, one plane
+ * at a time, publishing the histogram so far as they go. They are cancelled
+ * by any newer request for the same channel.
+ *
+ * @author timothygrocott
+ */
+class HistogramEngine {
+
+    /** Receives finished histograms, and whole-stack progress, on the event dispatch thread. */
+    interface Listener {
+        void histogramComputed(HistogramData hist);
+        void histogramProgress(int planes, int total);
+    }
+
+    /** Receives the exact histograms of several channels at once, on the event dispatch thread. */
+    interface BatchListener {
+        void histogramsComputed(int[] channels, HistogramData[] hists);
+    }
+
+    // Minimum interval between partial whole-stack results...
+    private static final long PUBLISH_INTERVAL_MS = 100;
+
+    private static HistogramEngine instance;
+
+    private final ThreadPoolExecutor executor;
+    // Latest request waiting to be picked up, per image/channel key...
+    private final ConcurrentHashMap<Long, Request> pending = new ConcurrentHashMap<Long, Request>();
+    // Sequence number of the newest request submitted, per image/channel key...
+    private final ConcurrentHashMap<Long, Long> latest = new ConcurrentHashMap<Long, Long>();
+    private final AtomicLong sequence = new AtomicLong();
+    // Tasks queued or running, guarded by idleLock, which is notified whenever the count drops to zero...
+    private final Object idleLock = new Object();
+    private int outstanding;
+
+    private HistogramEngine() {
+
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()/2));
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<Runnable>(256),
+                                          new EngineThreadFactory() );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized HistogramEngine getInstance() {
+
+        if (instance == null) instance = new HistogramEngine();
+        return instance;
+    }
+
+    /**
+     * Queues a histogram of the given channel at the image's current slice
+     * and frame. Must be called on the event dispatch thread.
+     */
+    void submit(ImagePlus imp, int channel, Listener listener) {
+
+        // Capture the plane to read now, while the image's position is stable...
+        int z = imp.getZ();
+        int t = imp.getT();
+        HistogramCache cache = HistogramCache.getInstance();
+        int bins = imp.getBitDepth() == 8 ? 256 : HistogramKernel.getBinCount();
+        HistogramCache.Key cacheKey = new HistogramCache.Key(imp.getID(), channel, z, t, cache.getVersion(imp.getID(), channel, z, t), bins);
+        final long key = key(imp.getID(), channel);
+        long seq = sequence.incrementAndGet();
+        latest.put(key, seq);
+        // Answer straight away if the histogram is cached...
+        HistogramData hist = cache.get(cacheKey);
+        if (hist != null) {
+            pending.remove(key);
+            Metrics.getInstance().count("histogram.cacheHits");
+            listener.histogramComputed(hist);
+            return;
+        }
+        // The plane is read from the stack, so the image never has to be moved to this channel...
+        ImageStack stack = imp.getStack();
+        int index = imp.getStackIndex(channel, z, t);
+        Request request = new Request(cacheKey, seq, stack, index, HistogramKernel.isSampling(), listener);
+        // Only schedule a worker if none is already waiting for this key - a waiting worker will pick up the newest request...
+        Request replaced = pending.put(key, request);
+        if (replaced != null) {
+            Metrics.getInstance().count("histogram.coalesced");
+        } else {
+            try {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        compute(key);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pending.remove(key, request);
+                Metrics.getInstance().count("histogram.rejected");
+            }
+        }
+    }
+
+    /**
+     * Starts a histogram of the given channel over every slice and frame. The
+     * listener receives partial histograms and progress as planes are added.
+     * Must be called on the event dispatch thread.
+     */
+    void submitStack(ImagePlus imp, int channel, final Listener listener) {
+
+        final int nSlices = imp.getNSlices();
+        final int nFrames = imp.getNFrames();
+        final int bins = imp.getBitDepth() == 8 ? 256 : HistogramKernel.getBinCount();
+        HistogramCache cache = HistogramCache.getInstance();
+        // Slice and frame 0 stand for the whole stack...
+        final HistogramCache.Key cacheKey = new HistogramCache.Key(imp.getID(), channel, 0, 0, cache.getVersion(imp.getID(), channel, 0, 0), bins);
+        final long key = key(imp.getID(), channel);
+        final long seq = sequence.incrementAndGet();
+        latest.put(key, seq);
+        pending.remove(key);
+        HistogramData hist = cache.get(cacheKey);
+        if (hist != null) {
+            listener.histogramComputed(hist);
+            listener.histogramProgress(nSlices*nFrames, nSlices*nFrames);
+            return;
+        }
+        final ImageStack stack = imp.getStack();
+        final int bitDepth = imp.getBitDepth();
+        final int[] index = new int[nSlices*nFrames];
+        for (int t = 0; t < nFrames; t++)
+            for (int z = 0; z < nSlices; z++)
+                index[t*nSlices + z] = imp.getStackIndex(channel, z+1, t+1);
+        try {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    HistogramKernel.Accumulator accumulator = new HistogramKernel.Accumulator(bitDepth, bins);
+                    long lastPublished = System.currentTimeMillis();
+                    for (int i = 0; i < index.length; i++) {
+                        // Stop as soon as a newer request, or a cancel, comes in for this channel...
+                        if (!isLatest(key, seq))
+                            return;
+                        try {
+                            // Virtual stacks read the plane from disk here, and it is dropped again straight after...
+                            accumulator.add( stack.getProcessor(index[i]) );
+                        } catch (RuntimeException e) {
+                            IJ.handleException(e);
+                            return;
+                        }
+                        long now = System.currentTimeMillis();
+                        if (i == index.length-1 || now - lastPublished >= PUBLISH_INTERVAL_MS) {
+                            HistogramData hist = accumulator.getHistogram(bins);
+                            if (i == index.length-1) {
+                                HistogramCache.getInstance().put(cacheKey, hist);
+                                Metrics.getInstance().record("histogram.stack", start);
+                            }
+                            publish(key, seq, listener, hist, i+1, index.length);
+                            lastPublished = now;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            latest.remove(key, seq);
+            Metrics.getInstance().count("histogram.rejected");
+        }
+    }
+
+    /**
+     * Histograms several channels at the image's current slice and frame,
+     * computing any that are not cached in parallel, and hands them all back
+     * together. These requests are not coalesced or cancelled. Must be called
+     * on the event dispatch thread.
+     */
+    void submitAll(ImagePlus imp, final int[] channels, final BatchListener listener) {
+
+        int z = imp.getZ();
+        int t = imp.getT();
+        final HistogramCache cache = HistogramCache.getInstance();
+        final int bins = imp.getBitDepth() == 8 ? 256 : HistogramKernel.getBinCount();
+        final ImageStack stack = imp.getStack();
+        final HistogramData[] hists = new HistogramData[channels.length];
+        final HistogramCache.Key[] cacheKeys = new HistogramCache.Key[channels.length];
+        final int[] index = new int[channels.length];
+        boolean cached = true;
+        for (int i = 0; i < channels.length; i++) {
+            cacheKeys[i] = new HistogramCache.Key(imp.getID(), channels[i], z, t, cache.getVersion(imp.getID(), channels[i], z, t), bins);
+            index[i] = imp.getStackIndex(channels[i], z, t);
+            hists[i] = cache.get(cacheKeys[i]);
+            if (hists[i] == null) cached = false;
+        }
+        if (cached) {
+            listener.histogramsComputed(channels, hists);
+            return;
+        }
+        try {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    // One task per missing channel, run side by side on the common pool...
+                    ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+                    for (int i = 0; i < channels.length; i++) {
+                        if (hists[i] != null)
+                            continue;
+                        final int c = i;
+                        tasks.add( Executors.callable(new Runnable() {
+                            @Override
+                            public void run() {
+                                hists[c] = HistogramKernel.compute(stack.getProcessor(index[c]), bins);
+                                cache.put(cacheKeys[c], hists[c]);
+                                Metrics.getInstance().count("histogram.recomputes");
+                            }
+                        }) );
+                    }
+                    try {
+                        for (Future<Object> future : ForkJoinPool.commonPool().invokeAll(tasks))
+                            future.get();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (ExecutionException e) {
+                        IJ.handleException( e.getCause() );
+                        return;
+                    }
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.histogramsComputed(channels, hists);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Metrics.getInstance().count("histogram.rejected");
+        }
+    }
+
+    /** Stops any queued or running histogram of one channel. */
+    void cancel(ImagePlus imp, int channel) {
+
+        long key = key(imp.getID(), channel);
+        pending.remove(key);
+        latest.remove(key);
+    }
+
+    /** Forgets any queued or in-flight requests for an image. */
+    void cancel(int imageID) {
+
+        for (Long key : pending.keySet())
+            if ( (int)(key >> 32) == imageID ) pending.remove(key);
+        for (Long key : latest.keySet())
+            if ( (int)(key >> 32) == imageID ) latest.remove(key);
+    }
+
+    /** Returns the number of tasks waiting for a worker thread. */
+    int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /** Returns the number of plane requests waiting to be picked up. */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Returns the number of worker threads busy computing. */
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /** Blocks until no task is queued or running. */
+    void awaitIdle() throws InterruptedException {
+
+        synchronized (idleLock) {
+            while (outstanding > 0)
+                idleLock.wait();
+        }
+    }
+
+    /** Hands a task to the workers, counting it as outstanding until it finishes. */
+    private void execute(final Runnable task) {
+
+        synchronized (idleLock) {
+            outstanding++;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finished();
+            throw e;
+        }
+    }
+
+    private void finished() {
+
+        synchronized (idleLock) {
+            if (--outstanding == 0)
+                idleLock.notifyAll();
+        }
+    }
+
+    private void compute(final long key) {
+
+        final Request request = pending.remove(key);
+        if (request == null)
+            return;
+        HistogramData hist;
+        Metrics metrics = Metrics.getInstance();
+        metrics.record("histogram.queueWait", request.submitted);
+        metrics.count("histogram.recomputes");
+        try {
+            ImageProcessor ip = request.stack.getProcessor(request.index);
+            // Paint a quick approximation from a sample of a large plane first...
+            int stride = request.sampling ? HistogramKernel.getSampleStride(ip.getWidth()*ip.getHeight(), ip.getWidth()) : 1;
+            if (stride > 1) {
+                long start = System.nanoTime();
+                HistogramData sampled = HistogramKernel.computeSampled(ip, request.cacheKey.bins, stride);
+                metrics.record("histogram.sampled", start);
+                deliver(key, request, sampled);
+                if (!isLatest(key, request.seq))
+                    return;
+            }
+            // ...then replace it with the exact one
+            long start = System.nanoTime();
+            hist = HistogramKernel.compute(ip, request.cacheKey.bins);
+            metrics.record("histogram.compute", start);
+            HistogramCache.getInstance().put(request.cacheKey, hist);
+        } catch (RuntimeException e) {
+            IJ.handleException(e);
+            return;
+        }
+        deliver(key, request, hist);
+    }
+
+    private void deliver(final long key, final Request request, final HistogramData hist) {
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                // Drop results that have been overtaken by a newer request...
+                if (isLatest(key, request.seq)) {
+                    request.listener.histogramComputed(hist);
+                    if (!hist.approximate)
+                        Metrics.getInstance().record("histogram.latency", request.submitted);
+                } else {
+                    Metrics.getInstance().count("histogram.superseded");
+                }
+            }
+        });
+    }
+
+    private void publish(final long key, final long seq, final Listener listener, final HistogramData hist, final int planes, final int total) {
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (isLatest(key, seq)) {
+                    listener.histogramComputed(hist);
+                    listener.histogramProgress(planes, total);
+                }
+            }
+        });
+    }
+
+    private boolean isLatest(long key, long seq) {
+
+        Long newest = latest.get(key);
+        return newest != null && newest == seq;
+    }
+
+    private static long key(int imageID, int channel) {
+
+        return ( (long)imageID << 32 ) | (channel & 0xffffffffL);
+    }
+
+    private static class Request {
+
+        final HistogramCache.Key cacheKey;
+        final long seq;
+        final ImageStack stack;
+        final int index;
+        final boolean sampling;
+        final Listener listener;
+        final long submitted = System.nanoTime();
+
+        Request(HistogramCache.Key cacheKey, long seq, ImageStack stack, int index, boolean sampling, Listener listener) {
+            this.cacheKey = cacheKey;
+            this.seq = seq;
+            this.stack = stack;
+            this.index = index;
+            this.sampling = sampling;
+            this.listener = listener;
+        }
+    }
+
+    private static class EngineThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Channels Plus Histogram-" + count.incrementAndGet() );
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.Prefs;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds full-bit-depth histograms directly from pixel arrays.
+ *
+ * 8 and 16-bit planes are counted into one bin per possible value in a
+ * single pass; the data min/max then fall out of the first and last
+ * non-empty bins, and the counts are regrouped into the requested number of
+ * bins over that range without touching the pixels again. Float planes have
+ * no such finite value range, so they take one pass for min/max and one to
+ * fill the bins. Binning in a single pass over a range grown as new values
+ * turn up, as the Accumulator does from plane to plane, would leave the bins
+ * wider than the data needs and out of step with ImageJ's own float
+ * histograms, which are binned over the exact data range.
+ *
+ * Planes of PARALLEL_THRESHOLD pixels or more are split into bands that are
+ * histogrammed on the common fork/join pool, each into its own bin array,
+ * and the arrays are summed on the way back up. Smaller planes stay on the
+ * serial path, where forking would cost more than it saves. Background work
+ * that has to stay on its own threads uses computeSerial() instead, which
+ * never forks and can be abandoned between tiles.
+ *
+ * For a quick preview, computeSampled() histograms every k-th pixel of a
+ * plane. k is chosen so that the sample is at least the configured fraction
+ * of the plane, and large enough for the sample's cumulative histogram to
+ * be within the configured error of the plane's at 95% confidence
+ * (Dvoretzky-Kiefer-Wolfowitz).
+ *
+ * @author timothygrocott
+ */
+class HistogramKernel {
+
+    static final String PREF_BINS = "channelsplus.histogram.bins";
+    static final int DEFAULT_BINS = 4096;
+    static final String PREF_SAMPLING = "channelsplus.sampling";
+    static final String PREF_SAMPLE_RATE = "channelsplus.sampling.rate";
+    static final String PREF_SAMPLE_ERROR = "channelsplus.sampling.error";
+    // Planes smaller than this (in pixels) are never previewed from a sample...
+    static final int SAMPLING_THRESHOLD = 4*1024*1024;
+    // Planes smaller than this (in pixels) are histogrammed serially...
+    static final int PARALLEL_THRESHOLD = 1024*1024;
+    // ...and larger ones are never split into bands smaller than this
+    static final int MIN_TILE = 256*1024;
+
+    /** Returns the user's bin count for 16 and 32-bit images. */
+    static int getBinCount() {
+        return Math.max(16, (int)Prefs.get(PREF_BINS, DEFAULT_BINS) );
+    }
+
+    static void setBinCount(int bins) {
+        Prefs.set(PREF_BINS, bins);
+    }
+
+    static boolean isSampling() {
+        return Prefs.get(PREF_SAMPLING, true);
+    }
+
+    static void setSampling(boolean sampling) {
+        Prefs.set(PREF_SAMPLING, sampling);
+    }
+
+    /**
+     * Returns the stride for sampling a plane of n pixels, w pixels wide, or 1
+     * if the plane is too small for sampling to pay off. The stride is kept
+     * coprime to the width, so successive rows sample different columns.
+     */
+    static int getSampleStride(int n, int w) {
+
+        if (n < SAMPLING_THRESHOLD)
+            return 1;
+        double rate = Prefs.get(PREF_SAMPLE_RATE, 0.01);
+        double error = Math.max(1e-4, Prefs.get(PREF_SAMPLE_ERROR, 0.01) );
+        // DKW: P(sup|F_m - F| > error) <= 2exp(-2m error^2), with the bound set to 5%...
+        double m = Math.max(rate*n, Math.log(2/0.05)/(2*error*error) );
+        int stride = (int)(n/m);
+        if (stride < 4)
+            return 1;
+        while (gcd(stride, w) != 1) stride++;
+        return stride;
+    }
+
+    /** Histograms every stride-th pixel of a plane, scaling the counts up to the whole plane. */
+    static HistogramData computeSampled(ImageProcessor ip, int bins, int stride) {
+
+        Object pixels = ip.getPixels();
+        int n = ip.getWidth()*ip.getHeight();
+        HistogramData sample;
+        if (pixels instanceof byte[]) {
+            int[] counts = new int[256];
+            byte[] bPixels = (byte[])pixels;
+            for (int i = 0; i < n; i += stride) counts[bPixels[i] & 0xff]++;
+            sample = fromCounts8(counts);
+        } else if (pixels instanceof short[]) {
+            int[] counts = new int[65536];
+            short[] sPixels = (short[])pixels;
+            for (int i = 0; i < n; i += stride) counts[sPixels[i] & 0xffff]++;
+            sample = fromCounts16(counts, bins);
+        } else {
+            float[] fPixels = (float[])pixels;
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i += stride) {
+                float v = fPixels[i];
+                if (v < min && v != Float.NEGATIVE_INFINITY) min = v;
+                if (v > max && v != Float.POSITIVE_INFINITY) max = v;
+            }
+            double[] range = range32(min, max);
+            double scale = bins/(range[1] - range[0]);
+            int[] counts = new int[bins];
+            for (int i = 0; i < n; i += stride) {
+                float v = fPixels[i];
+                if ( !(v >= range[0]) || v == Float.POSITIVE_INFINITY) continue;
+                int bin = (int)( (v - range[0])*scale );
+                counts[bin >= bins ? bins-1 : bin]++;
+            }
+            sample = new HistogramData(counts, range[0], range[1], range[2], range[3]);
+        }
+        int[] counts = sample.counts;
+        for (int i = 0; i < counts.length; i++) counts[i] *= stride;
+        return new HistogramData(counts, sample.min, sample.max, sample.dataMin, sample.dataMax, true);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int r = a % b;
+            a = b;
+            b = r;
+        }
+        return a;
+    }
+
+    /** Histograms a whole plane. 8-bit planes always get 256 bins, other types get the given bin count. */
+    static HistogramData compute(ImageProcessor ip, int bins) {
+
+        Object pixels = ip.getPixels();
+        int n = ip.getWidth()*ip.getHeight();
+        int tile = getTileSize(n);
+        if (ip instanceof ByteProcessor) {
+            return fromCounts8( count(pixels, n, tile, 256, 0, 1) );
+        } else if (ip instanceof ShortProcessor) {
+            return fromCounts16( count(pixels, n, tile, 65536, 0, 1), bins );
+        } else if (ip instanceof FloatProcessor) {
+            float[] fPixels = (float[])pixels;
+            double[] minMax;
+            if (tile < n) {
+                minMax = ForkJoinPool.commonPool().invoke( new MinMaxTask(fPixels, 0, n, tile) );
+            } else {
+                minMax = new double[] {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                minMax32(fPixels, 0, n, minMax);
+            }
+            double[] range = range32(minMax[0], minMax[1]);
+            int[] counts = count(pixels, n, tile, bins, range[0], bins/(range[1] - range[0]) );
+            return new HistogramData(counts, range[0], range[1], range[2], range[3]);
+        }
+        throw new IllegalArgumentException("Unsupported image type: " + ip.getClass().getSimpleName() );
+    }
+
+    /** Asked between tiles of computeSerial() whether its result is still wanted. */
+    interface Cancellation {
+        boolean isCancelled();
+    }
+
+    /**
+     * Histograms a whole plane as compute() does, but on the calling thread
+     * only, MIN_TILE pixels at a time, returning null as soon as the
+     * computation is cancelled.
+     */
+    static HistogramData computeSerial(ImageProcessor ip, int bins, Cancellation cancellation) {
+
+        Object pixels = ip.getPixels();
+        int n = ip.getWidth()*ip.getHeight();
+        if (ip instanceof ByteProcessor) {
+            int[] counts = new int[256];
+            return countSerial(pixels, n, 0, 1, counts, cancellation) ? fromCounts8(counts) : null;
+        } else if (ip instanceof ShortProcessor) {
+            int[] counts = new int[65536];
+            return countSerial(pixels, n, 0, 1, counts, cancellation) ? fromCounts16(counts, bins) : null;
+        } else if (ip instanceof FloatProcessor) {
+            float[] fPixels = (float[])pixels;
+            double[] minMax = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int from = 0; from < n; from += MIN_TILE) {
+                if (cancellation.isCancelled())
+                    return null;
+                minMax32(fPixels, from, Math.min(n, from + MIN_TILE), minMax);
+            }
+            double[] range = range32(minMax[0], minMax[1]);
+            int[] counts = new int[bins];
+            if (!countSerial(pixels, n, range[0], bins/(range[1] - range[0]), counts, cancellation))
+                return null;
+            return new HistogramData(counts, range[0], range[1], range[2], range[3]);
+        }
+        throw new IllegalArgumentException("Unsupported image type: " + ip.getClass().getSimpleName() );
+    }
+
+    /** Counts pixels[0..n) into counts a tile at a time, returning false if cancelled first. */
+    private static boolean countSerial(Object pixels, int n, double min, double scale, int[] counts, Cancellation cancellation) {
+
+        for (int from = 0; from < n; from += MIN_TILE) {
+            if (cancellation.isCancelled())
+                return false;
+            countRange(pixels, from, Math.min(n, from + MIN_TILE), min, scale, counts);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the band size for splitting a plane of n pixels across the
+     * fork/join pool, or n itself if the plane should be done serially. A few
+     * bands per worker keeps the load balanced without allocating a bin array
+     * for every small tile.
+     */
+    static int getTileSize(int n) {
+
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (n < PARALLEL_THRESHOLD || parallelism < 2)
+            return n;
+        return Math.max(MIN_TILE, n/(4*parallelism) + 1);
+    }
+
+    /** Counts pixels[0..n) into a new array of bins, in parallel if tile is less than n. Float bins span min..min+bins/scale. */
+    private static int[] count(Object pixels, int n, int tile, int bins, double min, double scale) {
+
+        if (tile < n)
+            return ForkJoinPool.commonPool().invoke( new CountTask(pixels, 0, n, tile, bins, min, scale) );
+        int[] counts = new int[bins];
+        countRange(pixels, 0, n, min, scale, counts);
+        return counts;
+    }
+
+    private static void countRange(Object pixels, int from, int to, double min, double scale, int[] counts) {
+
+        if (pixels instanceof byte[]) {
+            count8( (byte[])pixels, from, to, counts );
+        } else if (pixels instanceof short[]) {
+            count16( (short[])pixels, from, to, counts );
+        } else {
+            count32( (float[])pixels, from, to, min, scale, counts );
+        }
+    }
+
+    static void count8(byte[] pixels, int from, int to, int[] counts) {
+
+        for (int i = from; i < to; i++)
+            counts[pixels[i] & 0xff]++;
+    }
+
+    static void count16(short[] pixels, int from, int to, int[] counts) {
+
+        for (int i = from; i < to; i++)
+            counts[pixels[i] & 0xffff]++;
+    }
+
+    /** Widens minMax to include the finite values in pixels[from..to). */
+    static void minMax32(float[] pixels, int from, int to, double[] minMax) {
+
+        float min = (float)minMax[0];
+        float max = (float)minMax[1];
+        for (int i = from; i < to; i++) {
+            float v = pixels[i];
+            if (v < min && v != Float.NEGATIVE_INFINITY) min = v;
+            if (v > max && v != Float.POSITIVE_INFINITY) max = v;
+        }
+        minMax[0] = min;
+        minMax[1] = max;
+    }
+
+    /** Adds the finite values in pixels[from..to) to counts, whose bins span min..min+counts.length/scale. */
+    static void count32(float[] pixels, int from, int to, double min, double scale, int[] counts) {
+
+        int last = counts.length - 1;
+        for (int i = from; i < to; i++) {
+            float v = pixels[i];
+            // NaN fails both comparisons, infinities are skipped explicitly...
+            if ( !(v >= min) || v == Float.POSITIVE_INFINITY) continue;
+            int bin = (int)( (v - min)*scale );
+            counts[bin > last ? last : bin]++;
+        }
+    }
+
+    static HistogramData fromCounts8(int[] counts) {
+
+        int first = firstNonEmpty(counts);
+        int last = lastNonEmpty(counts);
+        return new HistogramData(counts, 0, 256, first < 0 ? 0 : first, last < 0 ? 0 : last);
+    }
+
+    /** Regroups one-bin-per-value 16-bit counts into at most the given number of bins over the data range. */
+    static HistogramData fromCounts16(int[] counts, int bins) {
+
+        int first = firstNonEmpty(counts);
+        int last = lastNonEmpty(counts);
+        if (first < 0) {
+            return new HistogramData(new int[bins], 0, bins, 0, 0);
+        }
+        // Keep bins a whole number of values wide, so every bin collects the same number of possible values...
+        int span = last - first + 1;
+        int width = (span + bins - 1)/bins;
+        int n = (span + width - 1)/width;
+        int[] regrouped = new int[n];
+        for (int v = first; v <= last; v++)
+            regrouped[(v - first)/width] += counts[v];
+        return new HistogramData(regrouped, first, first + (double)n*width, first, last);
+    }
+
+    /** Regroups one-bin-per-value 16-bit totals as fromCounts16(int[], int) does, clamping the regrouped bins to int. */
+    static HistogramData fromCounts16(long[] counts, int bins) {
+
+        int first = -1;
+        int last = -1;
+        for (int v = 0; v < counts.length; v++) {
+            if (counts[v] != 0) {
+                if (first < 0) first = v;
+                last = v;
+            }
+        }
+        if (first < 0) {
+            return new HistogramData(new int[bins], 0, bins, 0, 0);
+        }
+        int span = last - first + 1;
+        int width = (span + bins - 1)/bins;
+        long[] regrouped = new long[(span + width - 1)/width];
+        for (int v = first; v <= last; v++)
+            regrouped[(v - first)/width] += counts[v];
+        return new HistogramData(clamp(regrouped), first, first + (double)regrouped.length*width, first, last);
+    }
+
+    /** Returns counts as ints, with any too large for an int clamped to Integer.MAX_VALUE. */
+    static int[] clamp(long[] counts) {
+
+        int[] clamped = new int[counts.length];
+        for (int i = 0; i < counts.length; i++)
+            clamped[i] = (int)Math.min(Integer.MAX_VALUE, counts[i]);
+        return clamped;
+    }
+
+    /** Returns {binMin, binMax, dataMin, dataMax} for float data, coping with empty and single-valued planes. */
+    static double[] range32(double dataMin, double dataMax) {
+
+        if (dataMin > dataMax) {
+            // No finite pixels at all...
+            dataMin = 0;
+            dataMax = 0;
+        }
+        double max = dataMax > dataMin ? dataMax : dataMin + 1;
+        return new double[] {dataMin, max, dataMin, dataMax};
+    }
+
+    private static int firstNonEmpty(int[] counts) {
+        for (int i = 0; i < counts.length; i++)
+            if (counts[i] != 0) return i;
+        return -1;
+    }
+
+    private static int lastNonEmpty(int[] counts) {
+        for (int i = counts.length - 1; i >= 0; i--)
+            if (counts[i] != 0) return i;
+        return -1;
+    }
+
+    /**
+     * Accumulates a histogram over many planes of one channel, one plane at a
+     * time, so that a whole stack can be streamed through without holding
+     * more than one plane. 8 and 16-bit planes are counted one bin per value.
+     * Float planes are binned over a range that doubles whenever a plane falls
+     * outside it, merging neighbouring bins, so nothing needs to be rescanned.
+     * Totals are kept as longs, as a long stack can put more than 2^31 pixels
+     * in one bin, and clamped to int when the histogram is read.
+     */
+    static class Accumulator {
+
+        final int bitDepth;
+        final int bins;
+        final long[] counts;
+        // Float binning...
+        double min;
+        double width;
+        double dataMin = Double.POSITIVE_INFINITY;
+        double dataMax = Double.NEGATIVE_INFINITY;
+
+        Accumulator(int bitDepth, int bins) {
+            this.bitDepth = bitDepth;
+            // Float ranges are doubled by merging bin pairs, which needs an even bin count...
+            this.bins = bins + (bins & 1);
+            counts = new long[bitDepth == 8 ? 256 : bitDepth == 16 ? 65536 : this.bins];
+        }
+
+        void add(ImageProcessor ip) {
+
+            Object pixels = ip.getPixels();
+            int n = ip.getWidth()*ip.getHeight();
+            int tile = getTileSize(n);
+            if (!(pixels instanceof float[])) {
+                int[] planeCounts = count(pixels, n, tile, counts.length, 0, 1);
+                for (int i = 0; i < counts.length; i++) counts[i] += planeCounts[i];
+                return;
+            }
+            float[] fPixels = (float[])pixels;
+            double[] minMax;
+            if (tile < n) {
+                minMax = ForkJoinPool.commonPool().invoke( new MinMaxTask(fPixels, 0, n, tile) );
+            } else {
+                minMax = new double[] {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                minMax32(fPixels, 0, n, minMax);
+            }
+            if (minMax[0] > minMax[1])
+                return; // No finite pixels
+            if (dataMin > dataMax) {
+                // First plane with data sets the initial range...
+                double[] range = range32(minMax[0], minMax[1]);
+                min = range[0];
+                width = (range[1] - range[0])/bins;
+            }
+            dataMin = Math.min(dataMin, minMax[0]);
+            dataMax = Math.max(dataMax, minMax[1]);
+            while (dataMin < min) grow(true);
+            while (dataMax > min + bins*width) grow(false);
+            int[] planeCounts = count(pixels, n, tile, bins, min, 1/width);
+            for (int i = 0; i < bins; i++) counts[i] += planeCounts[i];
+        }
+
+        /** Doubles the float bin width, extending the range down or up by its current span. */
+        private void grow(boolean down) {
+
+            int offset = down ? bins : 0;
+            long[] merged = new long[bins];
+            for (int i = 0; i < bins; i++)
+                merged[(i + offset)/2] += counts[i];
+            System.arraycopy(merged, 0, counts, 0, bins);
+            if (down) min -= bins*width;
+            width *= 2;
+        }
+
+        /** Returns the histogram so far, binned for display. */
+        HistogramData getHistogram(int displayBins) {
+
+            if (bitDepth == 8) return fromCounts8( clamp(counts) );
+            if (bitDepth == 16) return fromCounts16(counts, displayBins);
+            if (dataMin > dataMax) return new HistogramData(new int[bins], 0, 1, 0, 0);
+            return new HistogramData(clamp(counts), min, min + bins*width, dataMin, dataMax);
+        }
+    }
+
+    /** Histograms a band of pixels, splitting it in two until it is no bigger than a tile. */
+    private static class CountTask extends RecursiveTask<int[]> {
+
+        final Object pixels;
+        final int from, to, tile, bins;
+        final double min, scale;
+
+        CountTask(Object pixels, int from, int to, int tile, int bins, double min, double scale) {
+            this.pixels = pixels;
+            this.from = from;
+            this.to = to;
+            this.tile = tile;
+            this.bins = bins;
+            this.min = min;
+            this.scale = scale;
+        }
+
+        @Override
+        protected int[] compute() {
+
+            if (to - from <= tile) {
+                int[] counts = new int[bins];
+                countRange(pixels, from, to, min, scale, counts);
+                return counts;
+            }
+            int mid = (from + to) >>> 1;
+            CountTask left = new CountTask(pixels, from, mid, tile, bins, min, scale);
+            left.fork();
+            int[] counts = new CountTask(pixels, mid, to, tile, bins, min, scale).compute();
+            int[] leftCounts = left.join();
+            // Merge the two private bin arrays...
+            for (int i = 0; i < bins; i++)
+                counts[i] += leftCounts[i];
+            return counts;
+        }
+    }
+
+    /** Finds the finite min/max of a band of float pixels, splitting it in two until it is no bigger than a tile. */
+    private static class MinMaxTask extends RecursiveTask<double[]> {
+
+        final float[] pixels;
+        final int from, to, tile;
+
+        MinMaxTask(float[] pixels, int from, int to, int tile) {
+            this.pixels = pixels;
+            this.from = from;
+            this.to = to;
+            this.tile = tile;
+        }
+
+        @Override
+        protected double[] compute() {
+
+            if (to - from <= tile) {
+                double[] minMax = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                minMax32(pixels, from, to, minMax);
+                return minMax;
+            }
+            int mid = (from + to) >>> 1;
+            MinMaxTask left = new MinMaxTask(pixels, from, mid, tile);
+            left.fork();
+            double[] minMax = new MinMaxTask(pixels, mid, to, tile).compute();
+            double[] leftMinMax = left.join();
+            minMax[0] = Math.min(minMax[0], leftMinMax[0]);
+            minMax[1] = Math.max(minMax[1], leftMinMax[1]);
+            return minMax;
+        }
+    }
+}
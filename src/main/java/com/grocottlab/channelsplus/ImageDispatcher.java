@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+
+/**
+ * Listens to one image on behalf of all of its channel histograms, and works
+ * out which of them an update actually affects.
+ *
+ * Each update is compared with the last one seen. A change of slice or frame
+ * means every plane histogram has to show a new plane, and a change in the
+ * stack's size or type drops every cached histogram of the image. Other
+ * updates, apart from our own display changes, may have edited pixels, so
+ * after them, and after every move, the planes on show are checksummed on a
+ * background thread and compared with the checksums taken when they were
+ * last seen. Only the planes whose checksums differ are dropped from the
+ * HistogramCache and recomputed, so edits to a plane are also caught when
+ * it is next shown. Display range, LUT and mute changes made through
+ * Channels Plus only redraw the range shown over the histograms. In ROI
+ * mode every histogram of the image shows just the selection, through a
+ * RoiHistogram, and in live mode updates are left to a LiveHistogram to
+ * sample. All methods must be called on the event dispatch thread.
+ *
+ * @author timothygrocott
+ */
+class ImageDispatcher implements ImageListener {
+
+    private static final HashMap<Integer, ImageDispatcher> dispatchers = new HashMap<Integer, ImageDispatcher>();
+    // Checksums planes away from the event dispatch thread, for all images...
+    private static final ThreadPoolExecutor checker = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Channels Plus Checksum");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    static {
+        checker.allowCoreThreadTimeOut(true);
+    }
+
+    private final ImagePlus imp;
+    // Histograms currently shown for the image, by channel...
+    private final HashMap<Integer, JHistogram> histograms = new HashMap<Integer, JHistogram>();
+    // Checksum of each plane, by stack index, as it was last seen...
+    private final HashMap<Integer, Long> checksums = new HashMap<Integer, Long>();
+    private int lastZ;
+    private int lastT;
+    private int lastStackSize;
+    private int lastBitDepth;
+    // Number of times the stack's size or type has changed, so checks of the stack before can be told apart...
+    private int reshapes;
+    // Set while the planes on show are being checksummed, and again if they need checking once that is done...
+    private boolean checking;
+    private boolean recheck;
+    // Histograms of the selection, or of a live acquisition, while they are shown in place of plane or stack histograms...
+    private RoiHistogram roiHistogram;
+    private LiveHistogram liveHistogram;
+
+    private ImageDispatcher(ImagePlus imp) {
+
+        this.imp = imp;
+        lastZ = imp.getZ();
+        lastT = imp.getT();
+        lastStackSize = imp.getStackSize();
+        lastBitDepth = imp.getBitDepth();
+        ImagePlus.addImageListener(this);
+    }
+
+    static ImageDispatcher get(ImagePlus imp) {
+
+        ImageDispatcher dispatcher = dispatchers.get( imp.getID() );
+        if (dispatcher == null) {
+            dispatcher = new ImageDispatcher(imp);
+            dispatchers.put(imp.getID(), dispatcher);
+        }
+        return dispatcher;
+    }
+
+    static void remove(int imageID) {
+
+        ImageDispatcher dispatcher = dispatchers.remove(imageID);
+        if (dispatcher != null) {
+            ImagePlus.removeImageListener(dispatcher);
+            CompositeRenderer.remove(imageID);
+            Prefetcher.getInstance().cancel(imageID);
+            if (dispatcher.roiHistogram != null) dispatcher.roiHistogram.release();
+            if (dispatcher.liveHistogram != null) dispatcher.liveHistogram.release();
+        }
+    }
+
+    /** Starts passing updates of a channel to a histogram, replacing any other histogram of that channel. */
+    void add(int channel, JHistogram histogram) {
+
+        histograms.put(channel, histogram);
+        // Remember the plane as it is now, so that later updates can tell whether it has changed...
+        check();
+    }
+
+    void remove(int channel, JHistogram histogram) {
+
+        if (histograms.get(channel) == histogram)
+            histograms.remove(channel);
+        if (roiHistogram != null)
+            roiHistogram.remove(channel, histogram);
+        if (liveHistogram != null)
+            liveHistogram.remove(channel, histogram);
+    }
+
+    /**
+     * Switches every histogram of the image to showing the selection
+     * (JHistogram.ROI), a live acquisition (JHistogram.LIVE) or, for any
+     * other mode, the current plane.
+     */
+    void setSharedMode(int mode) {
+
+        if (mode != JHistogram.ROI && mode != JHistogram.LIVE)
+            mode = JHistogram.PLANE;
+        if (mode == getSharedMode())
+            return;
+        if (roiHistogram != null) {
+            roiHistogram.release();
+            roiHistogram = null;
+        }
+        if (liveHistogram != null) {
+            liveHistogram.release();
+            liveHistogram = null;
+        }
+        if (mode == JHistogram.ROI) {
+            roiHistogram = new RoiHistogram(imp);
+        } else if (mode == JHistogram.LIVE) {
+            liveHistogram = new LiveHistogram(imp);
+        }
+        for (JHistogram histogram : new ArrayList<JHistogram>( histograms.values() ))
+            histogram.applyMode(mode);
+    }
+
+    /** Returns JHistogram.ROI or JHistogram.LIVE if all the image's histograms are in that mode, otherwise JHistogram.PLANE. */
+    int getSharedMode() {
+
+        if (roiHistogram != null)
+            return JHistogram.ROI;
+        if (liveHistogram != null)
+            return JHistogram.LIVE;
+        return JHistogram.PLANE;
+    }
+
+    LiveHistogram getLiveHistogram() {
+        return liveHistogram;
+    }
+
+    RoiHistogram getRoiHistogram() {
+        return roiHistogram;
+    }
+
+    @Override
+    public void imageOpened(ImagePlus ip) {
+    }
+
+    @Override
+    public void imageClosed(ImagePlus ip) {
+    }
+
+    @Override
+    public void imageUpdated(ImagePlus ip) {
+
+        if (ip.getID() != imp.getID())
+            return;
+        HistogramCache cache = HistogramCache.getInstance();
+        // ImageJ redraws the image itself on anything other than our own redraws, so the fast renderer starts afresh...
+        if (!cache.isDisplayUpdate( ip.getID() ))
+            CompositeRenderer.imageUpdated(ip);
+        if (histograms.isEmpty())
+            return;
+        long start = System.nanoTime();
+        // While live, new frames are only noted here, and sampled at the live refresh rate...
+        if (liveHistogram != null) {
+            if (cache.isDisplayUpdate( ip.getID() )) {
+                for (Map.Entry<Integer, JHistogram> entry : histograms.entrySet())
+                    if (!entry.getValue().isAdjusting()) entry.getValue().updateDisplay(ip, entry.getKey() );
+            } else {
+                liveHistogram.imageUpdated();
+            }
+            Metrics.getInstance().record("image.dispatch", start);
+            return;
+        }
+        int z = ip.getZ();
+        int t = ip.getT();
+        int dz = z - lastZ;
+        int dt = t - lastT;
+        boolean moved = dz != 0 || dt != 0;
+        boolean resized = ip.getStackSize() != lastStackSize || ip.getBitDepth() != lastBitDepth;
+        lastZ = z;
+        lastT = t;
+        lastStackSize = ip.getStackSize();
+        lastBitDepth = ip.getBitDepth();
+        // A new stack shape or type leaves nothing cached worth keeping...
+        if (resized) {
+            cache.invalidate( ip.getID() );
+            checksums.clear();
+            reshapes++;
+            Metrics.getInstance().count("image.invalidations");
+        }
+        DisplayUpdater updater = DisplayUpdater.get(ip);
+        for (Map.Entry<Integer, JHistogram> entry : histograms.entrySet()) {
+            JHistogram histogram = entry.getValue();
+            // Redraws from our own slider drag would only pull the sliders back to an older range...
+            if (histogram.isAdjusting() || updater.isPending( entry.getKey() ))
+                continue;
+            if (resized) {
+                histogram.pixelsChanged();
+            } else if (moved) {
+                histogram.updateHist(ip, entry.getKey() );
+            } else {
+                histogram.updateDisplay(ip, entry.getKey() );
+            }
+        }
+        // Anything but our own display changes may have edited the planes on show, as may have happened to planes just moved to...
+        if (resized || moved || !cache.isDisplayUpdate( ip.getID() ))
+            check();
+        // Get ahead of the user, histogramming the next planes in the direction they are stepping...
+        if (moved) {
+            ArrayList<Integer> planeChannels = new ArrayList<Integer>();
+            for (Map.Entry<Integer, JHistogram> entry : histograms.entrySet())
+                if (entry.getValue().mode == JHistogram.PLANE) planeChannels.add( entry.getKey() );
+            int[] channels = new int[planeChannels.size()];
+            for (int i = 0; i < channels.length; i++) channels[i] = planeChannels.get(i);
+            Prefetcher.getInstance().moved(ip, channels, z, t, dz, dt);
+        }
+        Metrics.getInstance().record("image.dispatch", start);
+    }
+
+    /**
+     * Checksums the planes on show on the background thread, then drops and
+     * recomputes the histograms of any that differ from when they were last
+     * seen. If a check is already running, another follows it.
+     */
+    private void check() {
+
+        if (checking) {
+            recheck = true;
+            return;
+        }
+        final int z = imp.getZ();
+        final int t = imp.getT();
+        final int shape = reshapes;
+        final int[] channels = new int[histograms.size()];
+        final int[] index = new int[channels.length];
+        final Object[] pixels = new Object[channels.length];
+        int i = 0;
+        for (int channel : histograms.keySet()) {
+            channels[i] = channel;
+            index[i] = imp.getStackIndex(channel, z, t);
+            pixels[i] = getPixels(channel, z, t);
+            i++;
+        }
+        if (channels.length == 0)
+            return;
+        checking = true;
+        checker.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                final long[] sums = new long[pixels.length];
+                for (int i = 0; i < pixels.length; i++)
+                    if (pixels[i] != null) sums[i] = checksum(pixels[i]);
+                Metrics.getInstance().record("image.checksum", start);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        checked(z, t, shape, channels, index, pixels, sums);
+                    }
+                });
+            }
+        });
+    }
+
+    /** Compares the checksums taken by check() with those taken last time, and records them. */
+    private void checked(int z, int t, int shape, int[] channels, int[] index, Object[] pixels, long[] sums) {
+
+        checking = false;
+        if (dispatchers.get( imp.getID() ) != this)
+            return;
+        // Planes of a stack that has since changed shape are checked again from scratch below...
+        if (shape == reshapes) {
+            HistogramCache cache = HistogramCache.getInstance();
+            for (int i = 0; i < channels.length; i++) {
+                if (pixels[i] == null)
+                    continue;
+                Long old = checksums.put(index[i], sums[i]);
+                if (old == null || old == sums[i])
+                    continue;
+                cache.invalidate(imp.getID(), channels[i], z, t);
+                Metrics.getInstance().count("image.pixelChanges");
+                JHistogram histogram = histograms.get(channels[i]);
+                if (histogram != null && !histogram.isAdjusting() && z == imp.getZ() && t == imp.getT())
+                    histogram.pixelsChanged();
+            }
+        }
+        if (recheck) {
+            recheck = false;
+            check();
+        }
+    }
+
+    /**
+     * Returns a channel's plane, or null for planes of virtual stacks other
+     * than the one on screen, which would have to be read from disk.
+     */
+    private Object getPixels(int channel, int z, int t) {
+
+        if (channel == imp.getC() && z == imp.getZ() && t == imp.getT())
+            return imp.getProcessor().getPixels();
+        ImageStack stack = imp.getStack();
+        if (stack.isVirtual())
+            return null;
+        return stack.getPixels( imp.getStackIndex(channel, z, t) );
+    }
+
+    /**
+     * Returns a checksum of every pixel of a pixel array. Only the contents
+     * count, as virtual stacks read a new array each time a plane is shown.
+     */
+    static long checksum(Object pixels) {
+
+        long sum = 17;
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            for (int i = 0; i < p.length; i++)
+                sum = 31*sum + p[i];
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            for (int i = 0; i < p.length; i++)
+                sum = 31*sum + p[i];
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[])pixels;
+            for (int i = 0; i < p.length; i++)
+                sum = 31*sum + Float.floatToIntBits(p[i]);
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[])pixels;
+            for (int i = 0; i < p.length; i++)
+                sum = 31*sum + p[i];
+        }
+        return sum;
+    }
+}
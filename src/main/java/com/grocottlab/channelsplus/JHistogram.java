@@ -17,18 +17,23 @@
 package com.grocottlab.channelsplus;
 
 import javax.swing.JComponent;
-import ij.CompositeImage;
 import ij.IJ;
-import ij.ImageListener;
 import ij.ImagePlus;
-import ij.WindowManager;
-import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
 import javax.swing.BoxLayout;
+import javax.swing.ButtonGroup;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
+import javax.swing.JPopupMenu;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JSlider;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -37,63 +42,85 @@ import javax.swing.event.ChangeListener;
  *
  * @author timothygrocott
  */
-class JHistogram extends JComponent implements ImageListener {
+class JHistogram extends JComponent implements HistogramEngine.Listener {
     Graphics2D g2;
     //CompositeImage ci;
     //int channel;
     int channel;
     int channels;
-    int[] hist;
+    HistogramData hist;
     double[] dHist;
     double[] logHist;
-    double dMax;
-    double logMax;
     double maxBin;
     double rangeMin;
     double rangeMax;
+    // Value range and resolution of the sliders, which follow the histogram's bins...
+    double scaleMin = 0;
+    double scaleMax = 256;
+    int scaleBins = 256;
     JSlider minSlider;
     JSlider midSlider;
     JSlider maxSlider;
     Color channelColor;
     Color logColor;
     Color linColor;
+    // Background and bars, rendered once per histogram/colour and reused by every repaint...
+    BufferedImage bars;
     ImagePlus ci;
     
     boolean violin = false;
     
+    // Histogram of the current plane, of the channel across all slices and frames, of the selection, or of the last few frames acquired...
+    static final int PLANE = 0;
+    static final int STACK = 1;
+    static final int ROI = 2;
+    static final int LIVE = 3;
+    int mode = PLANE;
+    boolean stackRunning = false;
+    int stackPlanes;
+    int stackTotal;
+    JRadioButtonMenuItem planeItem;
+    JRadioButtonMenuItem stackItem;
+    JRadioButtonMenuItem roiItem;
+    JRadioButtonMenuItem liveItem;
+    
+    static final int PLOT_WIDTH = 256;
+    static final int[] BIN_CHOICES = {256, 1024, 4096, 16384, 65536};
+    
     public JHistogram(ImagePlus ci, int channel) {
         super();
         this.ci = ci;
         this.channel = channel;
         channels = ci.getDimensions()[2];
-        setPreferredSize( new Dimension(256+20, 60) );
-        setMinimumSize( new Dimension(256+20, 60) );
+        setPreferredSize( new Dimension(PLOT_WIDTH+20, 60) );
+        setMinimumSize( new Dimension(PLOT_WIDTH+20, 60) );
         this.buildUI(ci);
+        // The selection and live acquisitions are histogrammed for all of an image's channels or none...
+        mode = ImageDispatcher.get(ci).getSharedMode();
+        roiItem.setSelected(mode == ROI);
+        liveItem.setSelected(mode == LIVE);
         updateHist(ci, channel);
-        ci.addImageListener(this);
+        ImageDispatcher.get(ci).add(channel, this);
     }
 
     private void buildUI(ImagePlus ci) {
         
         JHistogram thisHist = this;
-        int currentChannel = ci.getC();
-        ci.setC(this.channel);
-        int rangeMin = (int)ci.getDisplayRangeMin();
-        int rangeMax = (int)ci.getDisplayRangeMax();
-        ci.setC(currentChannel);
-        int midRange = (int)( (rangeMin + rangeMax)/2.0f );
-        int diff     = (int)( (rangeMax - rangeMin)/1.0f );
+        double rangeMin = ChannelAccess.getDisplayRangeMin(ci, channel);
+        double rangeMax = ChannelAccess.getDisplayRangeMax(ci, channel);
+        resetScale(rangeMin, rangeMax);
+        int midRange = toSlider( (rangeMin + rangeMax)/2.0f );
     	
         // Define sliders first, so each of their ChangeHandlers can see them all..
-        maxSlider = new JSlider(0, 255, rangeMax );
+        maxSlider = new JSlider(0, scaleBins-1, toSlider(rangeMax) );
         maxSlider.setPaintTrack(false);
         maxSlider.setToolTipText("Maximum");
     
-        midSlider = new JSlider(0, 256, midRange);
+        midSlider = new JSlider(0, scaleBins, midRange);
         midSlider.setPaintTrack(false);
         midSlider.setToolTipText("Brightness");
     
-        minSlider = new JSlider(0, 255,  rangeMin );
+        minSlider = new JSlider(0, scaleBins-1,  toSlider(rangeMin) );
         minSlider.setPaintTrack(false);
         minSlider.setToolTipText("Minimum");
     	
@@ -101,83 +128,173 @@ class JHistogram extends JComponent implements ImageListener {
         maxSlider.addChangeListener( new ChangeListener() {
             public void stateChanged(ChangeEvent event) {
                 int value = maxSlider.getValue();
-                ImagePlus ci = WindowManager.getCurrentImage();
-                int currentChan = ci.getC();
-                ci.setC(channel);
-                double min = ci.getDisplayRangeMin();
-                if (value<=min) {
-                    maxSlider.setValue( (int)(min+1) );
+                double min = rangeMin;
+                if (value<=toSlider(min)) {
+                    maxSlider.setValue( toSlider(min)+1 );
                     return;
                 }
-                double max = value;
-                ci.setDisplayRange(min, max);
-                updateHist(ci, channel);
-                ci.updateChannelAndDraw();
-                ci.setC(currentChan);
+                double max = fromSlider(value);
+                setDisplayRange(min, max, maxSlider.getValueIsAdjusting());
                 // Update mid slider without triggering a change event...
                 ChangeListener[] midListeners = midSlider.getChangeListeners();
                 midSlider.removeChangeListener(midListeners[0]);
-                midSlider.setValue( (int)((min + max)/2.0f) );
+                midSlider.setValue( toSlider((min + max)/2.0f) );
                 midSlider.addChangeListener(midListeners[0]);
             }
         });
         minSlider.addChangeListener( new ChangeListener() {
             public void stateChanged(ChangeEvent event) {
                 int value = minSlider.getValue();
-                ImagePlus ci = WindowManager.getCurrentImage();
-                int currentChan = ci.getC();
-                ci.setC(channel);
-                double max = ci.getDisplayRangeMax();
-                if (value>=max) {
-                    minSlider.setValue( (int)(max-1) );
+                double max = rangeMax;
+                if (value>=toSlider(max)) {
+                    minSlider.setValue( toSlider(max)-1 );
                     return;
                 }
-                double min = value;
-                ci.setDisplayRange(min, max);
-                updateHist(ci, channel);
-                ci.updateChannelAndDraw();
-                ci.setC(currentChan);
+                double min = fromSlider(value);
+                setDisplayRange(min, max, minSlider.getValueIsAdjusting());
                 // Update mid slider without triggering a change event...
                 ChangeListener[] midListeners = midSlider.getChangeListeners();
                 midSlider.removeChangeListener(midListeners[0]);
-                midSlider.setValue( (int)((min + max)/2.0f) );
+                midSlider.setValue( toSlider((min + max)/2.0f) );
                 midSlider.addChangeListener(midListeners[0]);
             }
         });
         midSlider.addChangeListener( new ChangeListener() {
             public void stateChanged(ChangeEvent event) {
                 int value = midSlider.getValue();
-                ImagePlus ci = WindowManager.getCurrentImage();
-                int currentChan = ci.getC();
-                ci.setC(channel);
-                double max = ci.getDisplayRangeMax();
-                double min = ci.getDisplayRangeMin();
+                double max = rangeMax;
+                double min = rangeMin;
                 double diff = (max-min)/2.0f;
-                if (value>=255-diff) {
-                    midSlider.setValue( (int)(255-diff) );
+                int binDiff = (int)( diff/getSliderBinWidth() );
+                if (value>=scaleBins-1-binDiff) {
+                    midSlider.setValue( scaleBins-1-binDiff );
                     return;
-                } else if (value<=  0+diff) {
-                    midSlider.setValue( (int)(  0+diff) );
+                } else if (value<=  0+binDiff) {
+                    midSlider.setValue(   0+binDiff );
                     return;
                 }
-                double mid = value;
-                ci.setDisplayRange(mid-diff, mid+diff);
-                updateHist(ci, channel);
-                ci.updateChannelAndDraw();
-                ci.setC(currentChan);
+                double mid = fromSlider(value);
+                setDisplayRange(mid-diff, mid+diff, midSlider.getValueIsAdjusting());
                 // Update min/max sliders without triggering change events...
                 ChangeListener[] minListeners = minSlider.getChangeListeners();
                 minSlider.removeChangeListener(minListeners[0]);
                 ChangeListener[] maxListeners = maxSlider.getChangeListeners();
                 maxSlider.removeChangeListener(maxListeners[0]);
-                minSlider.setValue( (int)(mid-diff) );
-                maxSlider.setValue( (int)(mid+diff) );
+                minSlider.setValue( toSlider(mid-diff) );
+                maxSlider.setValue( toSlider(mid+diff) );
                 minSlider.addChangeListener(minListeners[0]);
                 maxSlider.addChangeListener(maxListeners[0]);
             }
         });
         // Disable sliders by default - they will be enabled individually when a channel is soloed
         setSlidersEnabled(false);
+        // Right-click menu for choosing the number of bins used for 16 and 32-bit images...
+        JPopupMenu popup = new JPopupMenu();
+        JMenu binMenu = new JMenu("Histogram bins (16/32-bit)");
+        ButtonGroup binGroup = new ButtonGroup();
+        for (int i = 0; i < BIN_CHOICES.length; i++) {
+            final int bins = BIN_CHOICES[i];
+            JRadioButtonMenuItem binItem = new JRadioButtonMenuItem("" + bins, bins == HistogramKernel.getBinCount() );
+            binItem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent ae) {
+                    HistogramKernel.setBinCount(bins);
+                    stackRunning = false;
+                    updateHist(thisHist.ci, channel);
+                }
+            });
+            binGroup.add(binItem);
+            binMenu.add(binItem);
+        }
+        popup.add(binMenu);
+        // ...for previewing large planes from a sample while the exact histogram is computed...
+        final JCheckBoxMenuItem samplingItem = new JCheckBoxMenuItem("Fast approximate preview", HistogramKernel.isSampling() );
+        samplingItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                HistogramKernel.setSampling( samplingItem.isSelected() );
+            }
+        });
+        popup.add(samplingItem);
+        // ...for drawing composites with the plugin's own renderer...
+        final JCheckBoxMenuItem renderItem = new JCheckBoxMenuItem("Fast composite rendering", CompositeRenderer.isEnabled() );
+        renderItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                CompositeRenderer.setEnabled( renderItem.isSelected() );
+                ImagePlus imp = thisHist.ci;
+                HistogramCache.getInstance().beginDisplayUpdate( imp.getID() );
+                try {
+                    if (!CompositeRenderer.draw(imp)) imp.updateAndDraw();
+                } finally {
+                    HistogramCache.getInstance().endDisplayUpdate( imp.getID() );
+                }
+            }
+        });
+        popup.add(renderItem);
+        final JCheckBoxMenuItem previewItem = new JCheckBoxMenuItem("Preview composite while adjusting", CompositeRenderer.isPreviewEnabled() );
+        previewItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                CompositeRenderer.setPreviewEnabled( previewItem.isSelected() );
+            }
+        });
+        popup.add(previewItem);
+        // ...and for switching between plane and whole-stack histograms
+        popup.addSeparator();
+        ButtonGroup modeGroup = new ButtonGroup();
+        planeItem = new JRadioButtonMenuItem("Current plane", true);
+        planeItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                setMode(PLANE);
+            }
+        });
+        modeGroup.add(planeItem);
+        popup.add(planeItem);
+        stackItem = new JRadioButtonMenuItem("Whole stack (all Z/T)");
+        stackItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                setMode(STACK);
+            }
+        });
+        modeGroup.add(stackItem);
+        popup.add(stackItem);
+        roiItem = new JRadioButtonMenuItem("Selection (all channels)");
+        roiItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                setMode(ROI);
+            }
+        });
+        modeGroup.add(roiItem);
+        popup.add(roiItem);
+        liveItem = new JRadioButtonMenuItem("Live acquisition (all channels)");
+        liveItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                setMode(LIVE);
+            }
+        });
+        modeGroup.add(liveItem);
+        popup.add(liveItem);
+        JMenuItem cancelItem = new JMenuItem("Cancel whole-stack histogram");
+        cancelItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                if (mode == STACK && stackRunning) {
+                    HistogramEngine.getInstance().cancel(thisHist.ci, channel);
+                    IJ.showProgress(1.0);
+                    setMode(PLANE);
+                }
+            }
+        });
+        popup.add(cancelItem);
+        setComponentPopupMenu(popup);
+        maxSlider.setInheritsPopupMenu(true);
+        midSlider.setInheritsPopupMenu(true);
+        minSlider.setInheritsPopupMenu(true);
     	// Add sliders...    		
         this.setLayout( new BoxLayout(this, BoxLayout.Y_AXIS) );
         this.add(maxSlider);
@@ -185,6 +302,36 @@ class JHistogram extends JComponent implements ImageListener {
         this.add(minSlider);
     }
     
+    /** Until the first histogram arrives, lets the sliders span the display range of 16 and 32-bit images. */
+    private void resetScale(double rangeMin, double rangeMax) {
+        
+        scaleMin = 0;
+        scaleMax = 256;
+        scaleBins = 256;
+        if (ci.getBitDepth() != 8 && rangeMax > rangeMin) {
+            scaleMin = rangeMin;
+            scaleMax = rangeMax;
+        }
+    }
+    
+    /**
+     * Shows a new display range straight away, and passes it on to the image,
+     * which is redrawn at most once per frame while a slider is being dragged.
+     */
+    private void setDisplayRange(double min, double max, boolean adjusting) {
+        
+        long start = System.nanoTime();
+        rangeMin = min;
+        rangeMax = max;
+        repaint();
+        DisplayUpdater.get(ci).setDisplayRange(channel, min, max, adjusting);
+        Metrics.getInstance().record("slider.change", start);
+    }
+    
+    boolean isAdjusting() {
+        return minSlider.getValueIsAdjusting() || midSlider.getValueIsAdjusting() || maxSlider.getValueIsAdjusting();
+    }
+    
     public void setSlidersEnabled(boolean enabled) {
         
         minSlider.setEnabled(enabled);
@@ -203,110 +350,290 @@ class JHistogram extends JComponent implements ImageListener {
         int y = 10;
         int w = getWidth()-20;
         int h = getHeight()-20;
-        // Paint the background...
-        g2.setColor(Color.LIGHT_GRAY);
-        g2.fillRect(x, y, w, h);
-        
-        // Draw the log & linear histograms...
-        if (violin) {
-            for(int i = 0; i < 256; i++) {
-                g2.setColor(logColor);
-                g2.fillRect(x+i, y+(h/2)-(int)(logHist[i]/2), 1, (int)(logHist[i]) );
-                g2.setColor(linColor);
-                g2.fillRect(x+i, y+(h/2)-(int)(dHist[i]/2), 1, (int)(dHist[i]) );
-            }
-        } else {
-            for(int i = 0; i < 256; i++) {
-                g2.setColor(logColor);
-                g2.fillRect(x+i, y+(h)-(int)logHist[i], 1, (int)logHist[i] );
-                g2.setColor(linColor);
-                g2.fillRect(x+i, y+h-(int)dHist[i], 1, (int)dHist[i] );
-            }
+        if (w <= 0 || h <= 0) {
+            g2.dispose();
+            super.paintComponent(g);
+            return;
         }
+        // Paint the background and histogram bars, re-rendering them only if something has changed...
+        if (bars == null || bars.getWidth() != w || bars.getHeight() != h)
+            bars = renderBars(w, h);
+        g2.drawImage(bars, x, y, null);
         
         // Draw display range...
+        int xMin = toPlot(rangeMin, w);
+        int xMax = toPlot(rangeMax, w);
         g2.setColor( new Color(0.0f,0.0f,0.0f,0.125f) );
-        g2.fillRect(x+(int)rangeMax, y, w-(int)rangeMax, h);
-        g2.fillRect(x, y, (int)rangeMin, h);
+        g2.fillRect(x+xMax, y, w-xMax, h);
+        g2.fillRect(x, y, xMin, h);
         //Color col = javax.swing.UIManager.getDefaults().getColor("List.selectionBackground");
         //g2.setColor( col );
-        g2.drawLine(x+(int)rangeMin, h+y, x+(int)rangeMax, y);
+        g2.drawLine(x+xMin, h+y, x+xMax, y);
+        
+        // Label whole-stack histograms, with progress while they stream in...
+        g2.setColor(Color.DARK_GRAY);
+        g2.setFont( g2.getFont().deriveFont(9.0f) );
+        if (mode == STACK) {
+            g2.drawString(stackRunning ? "Stack " + stackPlanes + "/" + stackTotal : "Stack", x+2, y+9);
+        } else if (mode == ROI) {
+            g2.drawString("ROI", x+2, y+9);
+        } else if (mode == LIVE) {
+            g2.drawString("Live", x+2, y+9);
+        }
+        // ...and say whether what is on screen is a sampled approximation or exact
+        if (hist != null && hist.approximate) {
+            g2.drawString("approx.", x+w-34, y+9);
+        }
         
         g2.dispose();
         super.paintComponent(g);
    }
+    
+    /** Renders the background and the log & linear histograms into an image of the plot area. */
+    private BufferedImage renderBars(int w, int h) {
+        
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D big = image.createGraphics();
+        // Paint the background...
+        big.setColor(Color.LIGHT_GRAY);
+        big.fillRect(0, 0, w, h);
+        
+        // Draw the log & linear histograms, once the first one has arrived...
+        if (dHist == null) {
+            // Nothing to draw yet
+        } else if (violin) {
+            big.setColor(logColor);
+            for(int i = 0; i < dHist.length; i++)
+                big.fillRect(i, (h/2)-(int)(logHist[i]/2), 1, (int)(logHist[i]) );
+            big.setColor(linColor);
+            for(int i = 0; i < dHist.length; i++)
+                big.fillRect(i, (h/2)-(int)(dHist[i]/2), 1, (int)(dHist[i]) );
+        } else {
+            big.setColor(logColor);
+            for(int i = 0; i < dHist.length; i++)
+                big.fillRect(i, h-(int)logHist[i], 1, (int)logHist[i] );
+            big.setColor(linColor);
+            for(int i = 0; i < dHist.length; i++)
+                big.fillRect(i, h-(int)dHist[i], 1, (int)dHist[i] );
+        }
+        big.dispose();
+        return image;
+    }
 
     public void updateHist(ImagePlus ci, int channel) {
-        int currentChannel = ci.getC();
-        if (currentChannel != channel)
-            ci.setC(channel);
-        double rangeMin = ci.getDisplayRangeMin();
-        double rangeMax = ci.getDisplayRangeMax();
-        ImageProcessor ip = ci.getProcessor();
+        
+        long start = System.nanoTime();
+        updateDisplay(ci, channel);
+        // Pixel data are histogrammed in the background - histogramComputed() is called back when done...
+        if (mode == PLANE) {
+            HistogramEngine.getInstance().submit(ci, channel, this);
+        } else if (mode == ROI) {
+            RoiHistogram roiHistogram = ImageDispatcher.get(ci).getRoiHistogram();
+            if (roiHistogram != null) roiHistogram.submit(channel, this);
+        } else if (mode == LIVE) {
+            LiveHistogram liveHistogram = ImageDispatcher.get(ci).getLiveHistogram();
+            if (liveHistogram != null) liveHistogram.submit(channel, this);
+        } else if (!stackRunning) {
+            // A whole-stack histogram doesn't change with position or display range, so only restart it when needed...
+            stackRunning = true;
+            stackPlanes = 0;
+            stackTotal = ci.getNSlices()*ci.getNFrames();
+            HistogramEngine.getInstance().submitStack(ci, channel, this);
+        }
+        Metrics.getInstance().record("histogram.updateHist", start);
+    }
+    
+    /**
+     * Switches this histogram to another channel of the same image, e.g. when
+     * its track is reused for a channel scrolled into view. Anything still
+     * being computed for the old channel is dropped.
+     */
+    void setChannel(int channel) {
+        
+        if (channel == this.channel)
+            return;
+        HistogramEngine.getInstance().cancel(ci, this.channel);
+        ImageDispatcher.get(ci).remove(this.channel, this);
+        if (mode == STACK && stackRunning)
+            IJ.showProgress(1.0);
+        this.channel = channel;
+        mode = ImageDispatcher.get(ci).getSharedMode();
+        stackRunning = false;
+        planeItem.setSelected(mode == PLANE);
+        roiItem.setSelected(mode == ROI);
+        liveItem.setSelected(mode == LIVE);
+        // Clear the old channel's plot until the new one's histogram arrives...
+        hist = null;
+        dHist = null;
+        logHist = null;
+        bars = null;
+        setToolTipText(null);
+        resetScale( ChannelAccess.getDisplayRangeMin(ci, channel), ChannelAccess.getDisplayRangeMax(ci, channel) );
+        updateHist(ci, channel);
+        ImageDispatcher.get(ci).add(channel, this);
+    }
+    
+    /** Brings the display range, sliders and colour up to date with the image, without touching the histogram. */
+    void updateDisplay(ImagePlus ci, int channel) {
+        // Read the channel's display settings without moving the image to it...
+        double rangeMin = ChannelAccess.getDisplayRangeMin(ci, channel);
+        double rangeMax = ChannelAccess.getDisplayRangeMax(ci, channel);
         if (channels>1) {
-            channelColor = ((CompositeImage)ci).getChannelColor();
+            channelColor = ChannelAccess.getChannelColor(ci, channel);
         } else {
             channelColor = Color.BLACK;
         }
-        hist = ip.getHistogram();
-        if (currentChannel != channel)
-            ci.setC(currentChannel);
         double rangeMid = (rangeMax+rangeMin)/2.0f;
 
-        logColor = new Color(channelColor.getRed()/255.0f, channelColor.getGreen()/255.0f, channelColor.getBlue()/255.0f, 0.25f);
-        linColor = new Color(channelColor.getRed()/255.0f, channelColor.getGreen()/255.0f, channelColor.getBlue()/255.0f, 1.0f);
+        Color newLinColor = new Color(channelColor.getRed()/255.0f, channelColor.getGreen()/255.0f, channelColor.getBlue()/255.0f, 1.0f);
+        if (!newLinColor.equals(linColor)) {
+            logColor = new Color(channelColor.getRed()/255.0f, channelColor.getGreen()/255.0f, channelColor.getBlue()/255.0f, 0.25f);
+            linColor = newLinColor;
+            bars = null;
+        }
 
-        // Update min/max sliders without triggering change events...
+        this.rangeMin = rangeMin;
+        this.rangeMax = rangeMax;
+        setSliders(rangeMin, rangeMid, rangeMax);
+        repaint();
+    }
+    
+    /** Recomputes the histogram after the channel's pixels have changed, restarting any whole-stack histogram. */
+    void pixelsChanged() {
+        
+        stackRunning = false;
+        updateHist(ci, channel);
+    }
+    
+    void setMode(int mode) {
+        
+        if (mode == this.mode)
+            return;
+        // Selection and live histograms are switched on and off for all of the image's channels together...
+        if (mode == ROI || mode == LIVE || this.mode == ROI || this.mode == LIVE)
+            ImageDispatcher.get(ci).setSharedMode(mode);
+        applyMode(mode);
+    }
+    
+    /** Switches this histogram alone to another mode. */
+    void applyMode(int mode) {
+        
+        if (mode == this.mode)
+            return;
+        // Stop anything the engine is still working on, which would otherwise arrive after the selection's histogram...
+        HistogramEngine.getInstance().cancel(ci, channel);
+        if (this.mode == STACK && stackRunning)
+            IJ.showProgress(1.0);
+        this.mode = mode;
+        stackRunning = false;
+        planeItem.setSelected(mode == PLANE);
+        stackItem.setSelected(mode == STACK);
+        roiItem.setSelected(mode == ROI);
+        liveItem.setSelected(mode == LIVE);
+        updateHist(ci, channel);
+    }
+    
+    @Override
+    public void histogramProgress(int planes, int total) {
+        
+        stackPlanes = planes;
+        stackTotal = total;
+        if (planes >= total)
+            stackRunning = false;
+        IJ.showProgress(planes, total);
+        repaint();
+    }
+
+    /** Sets all three sliders, and their ranges, without triggering change events. */
+    private void setSliders(double min, double mid, double max) {
+        
         ChangeListener[] minListeners = minSlider.getChangeListeners();
         minSlider.removeChangeListener(minListeners[0]);
         ChangeListener[] midListeners = midSlider.getChangeListeners();
         midSlider.removeChangeListener(midListeners[0]);
         ChangeListener[] maxListeners = maxSlider.getChangeListeners();
         maxSlider.removeChangeListener(maxListeners[0]);
-        minSlider.setValue( (int)(rangeMin) );
-        midSlider.setValue( (int)(rangeMid) );
-        maxSlider.setValue( (int)(rangeMax) );
+        minSlider.setMaximum(scaleBins-1);
+        midSlider.setMaximum(scaleBins);
+        maxSlider.setMaximum(scaleBins-1);
+        minSlider.setValue( toSlider(min) );
+        midSlider.setValue( toSlider(mid) );
+        maxSlider.setValue( toSlider(max) );
         minSlider.addChangeListener(minListeners[0]);
         midSlider.addChangeListener(midListeners[0]);
         maxSlider.addChangeListener(maxListeners[0]);
-        
-        dHist = new double[hist.length];
-        logHist = new double[hist.length];
-        this.rangeMin = rangeMin;
-        this.rangeMax = rangeMax;
-        dMax = 0.0;
-        logMax = 0.0;
-        for(int i = 0; i < logHist.length; i++) {
-            dHist[i] = hist[i];
-            if(dMax < dHist[i]) dMax = dHist[i];
-            logHist[i] = Math.log( hist[i] );
-            if(logMax < logHist[i]) logMax = logHist[i];
-        }
-        for(int i = 0; i < logHist.length; i++) {
-            dHist[i] = 40.0*(dHist[i]/dMax);
-            logHist[i] = 40.0*(logHist[i])/logMax;
-        }
-        repaint();
     }
-
-    @Override
-    public void imageOpened(ImagePlus ip) {
-        //throw new UnsupportedOperationException("Not supported yet."); // Generated from nbfs://nbhost/SystemFileSystem/Templates/Classes/Code/GeneratedMethodBody
+    
+    private double getSliderBinWidth() {
+        return (scaleMax - scaleMin)/scaleBins;
+    }
+    
+    /** Converts a pixel value to a slider position, clamped to the sliders' range. */
+    private int toSlider(double value) {
+        long position = Math.round( (value - scaleMin)/getSliderBinWidth() );
+        return (int)Math.max(0, Math.min(scaleBins, position) );
+    }
+    
+    /** Converts a slider position to a pixel value. */
+    private double fromSlider(int position) {
+        return scaleMin + position*getSliderBinWidth();
+    }
+    
+    /** Converts a pixel value to an x offset within a plot of the given width, clamped to the plot. */
+    private int toPlot(double value, int width) {
+        double x = (value - scaleMin)/(scaleMax - scaleMin)*width;
+        return (int)Math.max(0, Math.min(width, x) );
     }
 
     @Override
-    public void imageClosed(ImagePlus ip) {
-        //throw new UnsupportedOperationException("Not supported yet."); // Generated from nbfs://nbhost/SystemFileSystem/Templates/Classes/Code/GeneratedMethodBody
+    public void histogramComputed(HistogramData hist) {
+        
+        this.hist = hist;
+        setToolTipText(hist.approximate ? "Approximate histogram, from a sample of the pixels" : "Exact histogram");
+        // Let the sliders follow the histogram's value range and resolution...
+        if (hist.min != scaleMin || hist.max != scaleMax || hist.getBins() != scaleBins) {
+            scaleMin = hist.min;
+            scaleMax = hist.max;
+            scaleBins = hist.getBins();
+            setSliders(rangeMin, (rangeMin+rangeMax)/2.0f, rangeMax);
+        }
+        dHist = new double[PLOT_WIDTH];
+        logHist = new double[PLOT_WIDTH];
+        normalise(hist.counts, dHist, logHist, 40.0);
+        bars = null;
+        repaint();
     }
 
-    @Override
-    public void imageUpdated(ImagePlus ip) {
+    /**
+     * Sums histogram bins into plot columns, one per element of lin and log,
+     * and scales the linear and log counts so that the tallest column of each
+     * is the given height.
+     */
+    static void normalise(int[] counts, double[] lin, double[] log, double height) {
         
-        if(ip.getID() == ci.getID() && ip.getC() == channel) {
-            ip.removeImageListener(this);
-            updateHist(ip, channel );
-            ip.addImageListener(this);
+        int columns = lin.length;
+        double linMax = 0.0;
+        double logMax = 0.0;
+        for(int i = 0; i < columns; i++) {
+            int first = (int)( (long)i*counts.length/columns );
+            int last = Math.max(first+1, (int)( (long)(i+1)*counts.length/columns ) );
+            double sum = 0;
+            for (int b = first; b < last; b++) sum += counts[b];
+            lin[i] = sum;
+            if(linMax < lin[i]) linMax = lin[i];
+            log[i] = Math.log( sum );
+            if(logMax < log[i]) logMax = log[i];
+        }
+        for(int i = 0; i < columns; i++) {
+            lin[i] = height*(lin[i]/linMax);
+            log[i] = height*(log[i])/logMax;
         }
-        //throw new UnsupportedOperationException("Not supported yet."); // Generated from nbfs://nbhost/SystemFileSystem/Templates/Classes/Code/GeneratedMethodBody
     }
-}
\ No newline at end of file
+
+    /** Stops listening to the image and drops any histogram still being computed for it. */
+    void release() {
+        
+        ImageDispatcher.get(ci).remove(channel, this);
+        HistogramEngine.getInstance().cancel(ci, channel);
+    }
+}
@@ -17,7 +17,6 @@
 package com.grocottlab.channelsplus;
 
 import ij.process.LUT;
-import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import javax.swing.JButton;
@@ -29,11 +28,13 @@ import javax.swing.JButton;
 class JLutButton extends JButton {
     
     LUT lut;
+    LutImageCache.Lut lutColors;
     Graphics2D g2;
     
     JLutButton(LUT lut) {
         super(" ");
         this.lut = lut;
+        lutColors = new LutImageCache.Lut(lut);
         setSize(256, getHeight() );
         setContentAreaFilled(false);
         setFocusPainted(false); // used for demonstration
@@ -42,31 +43,19 @@ class JLutButton extends JButton {
     @Override
     protected void paintComponent(Graphics g) {
 
-        // build Color array from LUT
-        Color[] cols = new Color[256];
-        for(int i = 0; i < 256; i++) {
-            cols[i] = new Color(lut.getRed(i), lut.getGreen(i), lut.getBlue(i) );
-        }
         g2 = (Graphics2D) g.create();
         
-        // fill a series of rectangles, one per color
-        int x = 0;
-        int y = 0;
-        int w = getWidth();
+        // draw the LUT gradient, shared with every other button showing the same LUT at this size
         int h = getHeight();
-        int cinc = 1+(255/h);
-        for(x = 0; x < h; x++) {
-            int colIndex = x*cinc;
-            if (colIndex > 255) colIndex = 255;
-            g2.setColor( cols[colIndex] );
-            g2.fillRect(x, y, 1, h);
-        }
+        if (h > 0)
+            g2.drawImage(LutImageCache.getImage(lutColors, h, h), 0, 0, null);
        g2.dispose();
        super.paintComponent(g);
     }
     
     public void updateLut(LUT lut) {
         this.lut = lut;
+        lutColors = new LutImageCache.Lut(lut);
         repaint();
     }
 }
\ No newline at end of file
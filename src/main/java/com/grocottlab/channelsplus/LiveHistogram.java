@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Histograms of an image that is being acquired into, sampled at a fixed
+ * rate however fast the frames arrive.
+ *
+ * While live, the image's updates only mark it as changed. Every refresh
+ * interval, the newest plane of each channel - the last frame, or the last
+ * slice, if the stack has grown, otherwise the current plane - is counted
+ * into a ring buffer holding the last channelsplus.live.samples samples of
+ * each channel, and the histograms shown are the sum over the ring. Frames
+ * arriving faster than the refresh rate are not all sampled, so the ring
+ * covers the last few refreshes rather than the last few frames. Display ranges can follow the
+ * rolling histograms, as the "Auto" button would set them, with one redraw
+ * for all channels. The ring buffers and the bins shown are allocated when
+ * live mode starts; bins are widened in place if brighter frames come in.
+ * The bins shown alternate between two buffers per channel, so a refresh
+ * never writes to the counts on screen.
+ *
+ * Sampling runs on a background thread shared by all images, and a refresh
+ * is skipped while the last one is still being shown, so a slow display
+ * lowers the refresh rate rather than building up a backlog. Other than
+ * that, all methods must be called on the event dispatch thread.
+ *
+ * @author timothygrocott
+ */
+class LiveHistogram {
+
+    static final String PREF_RATE = "channelsplus.live.rate";
+    static final String PREF_SAMPLES = "channelsplus.live.samples";
+    static final String PREF_AUTO = "channelsplus.live.auto";
+
+    private static final ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Channels Plus Live Histogram");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    static {
+        worker.allowCoreThreadTimeOut(true);
+    }
+
+    private final ImagePlus imp;
+    private final int channels;
+    private final Rolling[] rolling;
+    private final HistogramData[] shown;
+    private final double[][] ranges;
+    // Histograms showing each channel, by channel - 1...
+    private final HistogramEngine.Listener[] listeners;
+    private final Timer timer;
+    private final boolean auto;
+    private final double saturated;
+    private boolean changed = true;
+    private int lastSlices;
+    private int lastFrames;
+    // Set while a sample is being taken or shown...
+    private final AtomicBoolean busy = new AtomicBoolean();
+
+    LiveHistogram(ImagePlus imp) {
+
+        this.imp = imp;
+        channels = imp.getNChannels();
+        int samples = Math.max(1, (int)Prefs.get(PREF_SAMPLES, 50) );
+        int bins = imp.getBitDepth() == 8 ? 256 : HistogramKernel.getBinCount();
+        rolling = new Rolling[channels];
+        for (int c = 0; c < channels; c++)
+            rolling[c] = new Rolling(imp.getBitDepth(), bins, samples);
+        shown = new HistogramData[channels];
+        ranges = new double[channels][];
+        listeners = new HistogramEngine.Listener[channels];
+        auto = Prefs.get(PREF_AUTO, true);
+        saturated = AutoContrast.getSaturated();
+        lastSlices = imp.getNSlices();
+        lastFrames = imp.getNFrames();
+        double rate = Math.max(0.1, Prefs.get(PREF_RATE, 10) );
+        timer = new Timer( (int)Math.round(1000/rate), new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                refresh();
+            }
+        });
+        timer.start();
+    }
+
+    /** Shows a channel's rolling histogram in the given histogram from the next refresh on. */
+    void submit(int channel, HistogramEngine.Listener listener) {
+
+        listeners[channel-1] = listener;
+        // Show what there is so far, unless the worker is busy refilling it...
+        if (shown[channel-1] != null && !busy.get())
+            listener.histogramComputed( shown[channel-1] );
+    }
+
+    void remove(int channel, HistogramEngine.Listener listener) {
+
+        if (listeners[channel-1] == listener)
+            listeners[channel-1] = null;
+    }
+
+    /** Notes that the image has changed, to be sampled at the next refresh. */
+    void imageUpdated() {
+
+        changed = true;
+        Metrics.getInstance().count("live.updates");
+    }
+
+    void release() {
+        timer.stop();
+        Arrays.fill(listeners, null);
+    }
+
+    private void refresh() {
+
+        if (!changed || !busy.compareAndSet(false, true))
+            return;
+        changed = false;
+        // Take the newest plane: the last frame or slice if the stack has grown, otherwise the one on screen...
+        int z = imp.getZ();
+        int t = imp.getT();
+        int nSlices = imp.getNSlices();
+        int nFrames = imp.getNFrames();
+        if (nFrames > lastFrames) {
+            t = nFrames;
+        } else if (nSlices > lastSlices) {
+            z = nSlices;
+        }
+        lastSlices = nSlices;
+        lastFrames = nFrames;
+        final ImageStack stack = imp.getStack();
+        final int[] index = new int[channels];
+        for (int c = 0; c < channels; c++)
+            index[c] = imp.getStackIndex(c+1, z, t);
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                sample(stack, index);
+            }
+        });
+    }
+
+    /** Adds the newest planes to the rolling histograms. Runs on the worker thread. */
+    private void sample(ImageStack stack, int[] index) {
+
+        long start = System.nanoTime();
+        try {
+            for (int c = 0; c < channels; c++) {
+                rolling[c].add( stack.isVirtual() ? stack.getProcessor(index[c]).getPixels() : stack.getPixels(index[c]) );
+                shown[c] = rolling[c].getHistogram();
+                if (auto) ranges[c] = AutoContrast.getRange(shown[c], saturated);
+            }
+        } catch (RuntimeException e) {
+            busy.set(false);
+            IJ.handleException(e);
+            return;
+        }
+        Metrics.getInstance().record("live.sample", start);
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                show();
+            }
+        });
+    }
+
+    private void show() {
+
+        try {
+            if (!timer.isRunning())
+                return;
+            for (int c = 0; c < channels; c++)
+                if (listeners[c] != null) listeners[c].histogramComputed( shown[c] );
+            if (auto) {
+                ChannelTransaction transaction = new ChannelTransaction(imp);
+                for (int c = 0; c < channels; c++)
+                    transaction.setDisplayRange(c+1, ranges[c][0], ranges[c][1]);
+                transaction.commit();
+            }
+        } finally {
+            busy.set(false);
+        }
+    }
+
+    /**
+     * Histograms of the last few planes of one channel, each kept in a slot
+     * of a ring, and their sum. 8-bit planes get one bin per value; other
+     * bins start one value wide (16-bit) or over the first plane's range
+     * (32-bit), and are doubled in width, merging neighbours in every slot,
+     * whenever a plane falls outside them. getHistogram() alternates between
+     * two count buffers, so the one last returned is left alone until the
+     * next call; the busy flag keeps a sample from starting before the last
+     * one has been shown.
+     */
+    static class Rolling {
+
+        final int bitDepth;
+        final int bins;
+        final int[][] slots;
+        final long[] sum;
+        // Counts handed out by getHistogram(), used turn about...
+        final int[][] shown;
+        int nextShown;
+        int next;
+        int filled;
+        double min;
+        double width;
+
+        Rolling(int bitDepth, int bins, int samples) {
+
+            this.bitDepth = bitDepth;
+            // Widening merges bin pairs, which needs an even bin count...
+            this.bins = bitDepth == 8 ? 256 : bins + (bins & 1);
+            slots = new int[samples][this.bins];
+            sum = new long[this.bins];
+            shown = new int[2][this.bins];
+            width = bitDepth == 32 ? 0 : 1;
+        }
+
+        /** Replaces the oldest slot with a new plane. */
+        void add(Object pixels) {
+
+            int[] slot = slots[next];
+            for (int i = 0; i < bins; i++)
+                sum[i] -= slot[i];
+            Arrays.fill(slot, 0);
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[])pixels;
+                for (int i = 0; i < p.length; i++) slot[p[i] & 0xff]++;
+            } else if (pixels instanceof short[]) {
+                short[] p = (short[])pixels;
+                int max = 0;
+                for (int i = 0; i < p.length; i++) max = Math.max(max, p[i] & 0xffff);
+                while (max >= bins*width) grow(false);
+                int w = (int)width;
+                for (int i = 0; i < p.length; i++) slot[(p[i] & 0xffff)/w]++;
+            } else {
+                float[] p = (float[])pixels;
+                double[] minMax = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                HistogramKernel.minMax32(p, 0, p.length, minMax);
+                if (minMax[0] <= minMax[1]) {
+                    if (width == 0) {
+                        double[] range = HistogramKernel.range32(minMax[0], minMax[1]);
+                        min = range[0];
+                        width = (range[1] - range[0])/bins;
+                    }
+                    while (minMax[0] < min) grow(true);
+                    while (minMax[1] > min + bins*width) grow(false);
+                    HistogramKernel.count32(p, 0, p.length, min, 1/width, slot);
+                }
+            }
+            for (int i = 0; i < bins; i++)
+                sum[i] += slot[i];
+            next = (next + 1) % slots.length;
+            filled = Math.min(filled + 1, slots.length);
+        }
+
+        /** Doubles the bin width, extending the range down or up by its current span. */
+        private void grow(boolean down) {
+
+            int offset = down ? bins : 0;
+            for (int s = 0; s < slots.length; s++)
+                merge(slots[s], offset);
+            Arrays.fill(sum, 0);
+            for (int s = 0; s < slots.length; s++)
+                for (int i = 0; i < bins; i++) sum[i] += slots[s][i];
+            if (down) min -= bins*width;
+            width *= 2;
+        }
+
+        /** Merges bin pairs in place, into the upper or lower half of the array. */
+        private void merge(int[] bin, int offset) {
+
+            if (offset == 0) {
+                for (int i = 0; i < bins/2; i++) bin[i] = bin[2*i] + bin[2*i+1];
+                Arrays.fill(bin, bins/2, bins, 0);
+            } else {
+                for (int i = bins-1; i >= bins/2; i--) bin[i] = bin[2*i-bins] + bin[2*i-bins+1];
+                Arrays.fill(bin, 0, bins/2, 0);
+            }
+        }
+
+        /** Returns the sum over the ring, in counts the next sample leaves alone. */
+        HistogramData getHistogram() {
+
+            int[] counts = shown[nextShown];
+            nextShown ^= 1;
+            int first = -1;
+            int last = -1;
+            for (int i = 0; i < bins; i++) {
+                counts[i] = (int)Math.min(Integer.MAX_VALUE, sum[i]);
+                if (counts[i] != 0) {
+                    if (first < 0) first = i;
+                    last = i;
+                }
+            }
+            double max = min + bins*width;
+            if (first < 0)
+                return new HistogramData(counts, min, max, min, min);
+            // Integer bins hold whole values, so the last one's top edge is one past the largest value...
+            double top = min + (last+1)*width - (bitDepth == 32 ? 0 : 1);
+            return new HistogramData(counts, min, max, min + first*width, top);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.process.LUT;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of rendered LUT gradients, keyed by LUT contents and
+ * image size, so that every JLutButton showing the same LUT shares one image.
+ *
+ * @author timothygrocott
+ */
+class LutImageCache {
+
+    private static final int MAX_ENTRIES = 64;
+
+    private static final LinkedHashMap<Key, BufferedImage> images = new LinkedHashMap<Key, BufferedImage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, BufferedImage> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Returns the gradient for a LUT, drawn the way JLutButton always has:
+     * one column per pixel, stepping through the LUT 1+255/height entries
+     * at a time.
+     */
+    static synchronized BufferedImage getImage(Lut lut, int width, int height) {
+
+        Key key = new Key(lut, width, height);
+        BufferedImage image = images.get(key);
+        if (image == null) {
+            image = render(lut, width, height);
+            images.put(key, image);
+        }
+        return image;
+    }
+
+    private static BufferedImage render(Lut lut, int width, int height) {
+
+        int[] column = new int[width];
+        int cinc = 1+(255/height);
+        for (int x = 0; x < width; x++) {
+            int colIndex = x*cinc;
+            if (colIndex > 255) colIndex = 255;
+            column[x] = lut.getRGB(colIndex);
+        }
+        int[] pixels = new int[width*height];
+        for (int y = 0; y < height; y++)
+            System.arraycopy(column, 0, pixels, y*width, width);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+
+    /** Immutable copy of a LUT's 256 colours, with its hash worked out once. */
+    static class Lut {
+
+        final byte[] rgb = new byte[3*256];
+        final int hash;
+
+        Lut(LUT lut) {
+            for (int i = 0; i < 256; i++) {
+                rgb[3*i] = (byte)lut.getRed(i);
+                rgb[3*i+1] = (byte)lut.getGreen(i);
+                rgb[3*i+2] = (byte)lut.getBlue(i);
+            }
+            hash = Arrays.hashCode(rgb);
+        }
+
+        int getRGB(int i) {
+            return ( (rgb[3*i] & 0xff) << 16 ) | ( (rgb[3*i+1] & 0xff) << 8 ) | (rgb[3*i+2] & 0xff);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Lut && hash == ((Lut)o).hash && Arrays.equals(rgb, ((Lut)o).rgb);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Key {
+
+        final Lut lut;
+        final int width;
+        final int height;
+
+        Key(Lut lut, int width, int height) {
+            this.lut = lut;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return width == k.width && height == k.height && lut.equals(k.lut);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31*(31*lut.hash + width) + height;
+        }
+    }
+}
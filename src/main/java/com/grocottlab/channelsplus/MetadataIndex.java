@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.ImagePlus;
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Key/value index of an image's Info property, built in one pass and kept
+ * per image until the property changes.
+ *
+ * Lines of the form "key = value" (or "key: value" for lines with no "=")
+ * are indexed by key, keeping the first value of keys that repeat. Numbered
+ * keys such as "Name #01" are stored without the padding, as "Name #1".
+ * Channel elements of any OME-XML in the text are indexed as
+ * "OME|Channel|<attribute> #<n>", numbering the channels in the order they
+ * appear.
+ *
+ * Channel names, colours and wavelengths are looked up under the keys Zeiss
+ * (CZI, ZVI and LSM via Bio-Formats), OME-XML and Nikon (ND2) files use,
+ * in that order.
+ *
+ * @author timothygrocott
+ */
+class MetadataIndex {
+
+    static final String OME_CHANNEL = "OME|Channel|";
+
+    private static final String[] NAME_KEYS = {
+        "Information|Image|Channel|Name",
+        "Experiment|AcquisitionBlock|MultiTrackSetup|TrackSetup|Detector|Dye|DyeName",
+        "DisplaySetting|Channel|Name",
+        OME_CHANNEL + "Name",
+        "sDescription"
+    };
+    private static final String[] COLOR_KEYS = {
+        "Information|Image|Channel|Color",
+        "DisplaySetting|Channel|Color",
+        OME_CHANNEL + "Color",
+        "uiColor"
+    };
+    private static final String[] WAVELENGTH_KEYS = {
+        "Information|Image|Channel|EmissionWavelength",
+        "Information|Image|Channel|Wavelength",
+        OME_CHANNEL + "EmissionWavelength",
+        "dEmissionWavelength"
+    };
+
+    private static final Pattern XML_CHANNEL = Pattern.compile("<(?:\\w+:)?Channel\\s([^>]*)>");
+    private static final Pattern XML_ATTRIBUTE = Pattern.compile("(\\w+)\\s*=\\s*\"([^\"]*)\"");
+
+    private static final HashMap<Integer, MetadataIndex> indices = new HashMap<Integer, MetadataIndex>();
+
+    // The text this index was built from, to tell when the image's Info property has been replaced...
+    private final String info;
+    private final HashMap<String, String> values = new HashMap<String, String>();
+
+    private MetadataIndex(String info) {
+
+        this.info = info;
+        if (info != null) {
+            parseLines(info);
+            if (info.indexOf("<OME") >= 0 || info.indexOf(":OME") >= 0)
+                parseOmeChannels(info);
+        }
+    }
+
+    /** Returns the index of an image's Info property, building it if the property is new or has changed. */
+    static synchronized MetadataIndex get(ImagePlus imp) {
+
+        String info = imp.getInfoProperty();
+        MetadataIndex index = indices.get( imp.getID() );
+        if (index == null || index.info != info) {
+            long start = System.nanoTime();
+            index = new MetadataIndex(info);
+            indices.put(imp.getID(), index);
+            Metrics.getInstance().record("metadata.index", start);
+        }
+        return index;
+    }
+
+    static synchronized void remove(int imageID) {
+        indices.remove(imageID);
+    }
+
+    /** Returns the value of a key, or null if there is none. */
+    String get(String key) {
+        return values.get(key);
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    /** Returns the name of a channel, counting from 1, or null if the metadata doesn't give one. */
+    String getChannelName(int channel) {
+
+        String name = find(NAME_KEYS, channel);
+        return name == null || name.length() == 0 ? null : name;
+    }
+
+    /** Returns the colour of a channel, counting from 1, or null if the metadata doesn't give one. */
+    Color getChannelColor(int channel) {
+
+        for (int i = 0; i < COLOR_KEYS.length; i++) {
+            String value = values.get(COLOR_KEYS[i] + " #" + channel);
+            if (value == null)
+                continue;
+            try {
+                if (value.startsWith("#")) {
+                    // Zeiss: #AARRGGBB or #RRGGBB
+                    return new Color( (int)(Long.parseLong(value.substring(1), 16) & 0xffffff) );
+                } else if (COLOR_KEYS[i].startsWith(OME_CHANNEL)) {
+                    // OME: signed RGBA
+                    return new Color( Integer.parseInt(value) >>> 8 );
+                } else {
+                    // Nikon: 0x00BBGGRR
+                    int bgr = Integer.parseInt(value);
+                    return new Color(bgr & 0xff, (bgr >> 8) & 0xff, (bgr >> 16) & 0xff);
+                }
+            } catch (NumberFormatException e) {
+                // Try the next key
+            }
+        }
+        return null;
+    }
+
+    /** Returns the emission wavelength of a channel, counting from 1, or NaN if the metadata doesn't give one. */
+    double getChannelWavelength(int channel) {
+
+        String value = find(WAVELENGTH_KEYS, channel);
+        if (value != null) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                // No usable wavelength
+            }
+        }
+        return Double.NaN;
+    }
+
+    private String find(String[] keys, int channel) {
+
+        for (int i = 0; i < keys.length; i++) {
+            String value = values.get(keys[i] + " #" + channel);
+            if (value != null)
+                return value;
+        }
+        return null;
+    }
+
+    private void parseLines(String text) {
+
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) end = length;
+            // Split at the line's first '=', or failing that its first ": ", looking no further than the line...
+            int split = -1;
+            int colon = -1;
+            for (int i = start; i < end; i++) {
+                char ch = text.charAt(i);
+                if (ch == '=') {
+                    split = i;
+                    break;
+                }
+                if (ch == ':' && colon < 0 && i+1 < end && text.charAt(i+1) == ' ')
+                    colon = i;
+            }
+            int width = 1;
+            if (split < 0) {
+                split = colon;
+                width = 2;
+            }
+            if (split > start) {
+                String key = normaliseKey( text.substring(start, split).trim() );
+                if (key.length() > 0 && !values.containsKey(key))
+                    values.put(key, text.substring(split+width, end).trim() );
+            }
+            start = end + 1;
+        }
+    }
+
+    private void parseOmeChannels(String text) {
+
+        Matcher channel = XML_CHANNEL.matcher(text);
+        int n = 0;
+        while (channel.find()) {
+            n++;
+            Matcher attribute = XML_ATTRIBUTE.matcher( channel.group(1) );
+            while (attribute.find()) {
+                String key = OME_CHANNEL + attribute.group(1) + " #" + n;
+                if (!values.containsKey(key))
+                    values.put(key, attribute.group(2) );
+            }
+        }
+    }
+
+    /** Drops leading zeros from the number of a numbered key, so "Name #01" becomes "Name #1". */
+    static String normaliseKey(String key) {
+
+        int hash = key.lastIndexOf(" #");
+        if (hash < 0 || hash + 2 >= key.length() || key.charAt(hash+2) != '0')
+            return key;
+        int i = hash + 2;
+        while (i < key.length()-1 && key.charAt(i) == '0')
+            i++;
+        for (int j = i; j < key.length(); j++)
+            if (!Character.isDigit( key.charAt(j) ))
+                return key;
+        return key.substring(0, hash+2) + key.substring(i);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency timers and event counters for the plugin's hot paths.
+ *
+ * Timers keep the last SAMPLES durations recorded, from which the median and
+ * 99th percentile are worked out when asked for, along with a running count
+ * and maximum. Counters are simple totals. Both are created on first use and
+ * are safe to update from any thread. Queue depths and cache statistics are
+ * read from the HistogramEngine and HistogramCache at the time of asking.
+ *
+ * Everything is published as attributes of the JMX MBean
+ * com.grocottlab.channelsplus:type=Metrics, and can be written to the ImageJ
+ * log with the "Channels Plus Metrics" command.
+ *
+ * @author timothygrocott
+ */
+class Metrics {
+
+    static final String OBJECT_NAME = "com.grocottlab.channelsplus:type=Metrics";
+    static final int SAMPLES = 1024;
+
+    private static Metrics instance;
+
+    private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private Metrics() {
+    }
+
+    static synchronized Metrics getInstance() {
+
+        if (instance == null) {
+            instance = new Metrics();
+            instance.register();
+        }
+        return instance;
+    }
+
+    /** Records the time elapsed since start, a System.nanoTime() reading, against the named timer. */
+    void record(String name, long start) {
+
+        getTimer(name).add(System.nanoTime() - start);
+    }
+
+    void count(String name) {
+
+        count(name, 1);
+    }
+
+    void count(String name, long n) {
+
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new AtomicLong() );
+            counter = counters.get(name);
+        }
+        counter.addAndGet(n);
+    }
+
+    Timer getTimer(String name) {
+
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            timers.putIfAbsent(name, new Timer() );
+            timer = timers.get(name);
+        }
+        return timer;
+    }
+
+    /** Returns every timer, counter and gauge as name/value pairs, sorted by name. Times are in milliseconds. */
+    TreeMap<String, Number> getValues() {
+
+        TreeMap<String, Number> values = new TreeMap<String, Number>();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            long[] stats = entry.getValue().getStatistics();
+            values.put(entry.getKey() + ".count", stats[0]);
+            values.put(entry.getKey() + ".p50Ms", stats[1]/1e6);
+            values.put(entry.getKey() + ".p99Ms", stats[2]/1e6);
+            values.put(entry.getKey() + ".maxMs", stats[3]/1e6);
+        }
+        addCountersAndGauges(values);
+        return values;
+    }
+
+    /** Returns a plain text report, one timer, counter or gauge per line. */
+    String getReport() {
+
+        StringBuilder report = new StringBuilder("Channels Plus metrics (times in ms):\n");
+        TreeMap<String, Timer> sortedTimers = new TreeMap<String, Timer>(timers);
+        for (Map.Entry<String, Timer> entry : sortedTimers.entrySet()) {
+            long[] stats = entry.getValue().getStatistics();
+            report.append("  ").append( entry.getKey() )
+                  .append(": n=").append(stats[0])
+                  .append(" p50=").append( format(stats[1]) )
+                  .append(" p99=").append( format(stats[2]) )
+                  .append(" max=").append( format(stats[3]) ).append('\n');
+        }
+        TreeMap<String, Number> values = new TreeMap<String, Number>();
+        addCountersAndGauges(values);
+        for (Map.Entry<String, Number> entry : values.entrySet())
+            report.append("  ").append( entry.getKey() ).append(": ").append( entry.getValue() ).append('\n');
+        return report.toString();
+    }
+
+    private void addCountersAndGauges(TreeMap<String, Number> values) {
+
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet())
+            values.put(entry.getKey(), entry.getValue().get() );
+        // Gauges, read now...
+        HistogramEngine engine = HistogramEngine.getInstance();
+        values.put("engine.queued", engine.getQueueSize() );
+        values.put("engine.pending", engine.getPendingCount() );
+        values.put("engine.active", engine.getActiveCount() );
+        HistogramCache cache = HistogramCache.getInstance();
+        values.put("cache.entries", cache.size() );
+        values.put("cache.hits", cache.getHits() );
+        values.put("cache.misses", cache.getMisses() );
+        values.put("cache.evictions", cache.getEvictions() );
+        values.put("cache.usedKB", cache.getMemoryUsed()/1024);
+    }
+
+    void reset() {
+
+        timers.clear();
+        counters.clear();
+    }
+
+    private static String format(long nanos) {
+        return String.format("%.3f", nanos/1e6);
+    }
+
+    /** Publishes the metrics over JMX, replacing any left behind by an earlier copy of the plugin. */
+    private void register() {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(new MetricsMBean(this), name);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(name);
+                server.registerMBean(new MetricsMBean(this), name);
+            }
+        } catch (Exception e) {
+            // JMX is a nice-to-have - the metrics can still be logged
+        } catch (LinkageError e) {
+            // ...as above, on JVMs without java.management
+        }
+    }
+
+    /** Durations of one operation: a count, a maximum and the most recent SAMPLES values, in nanoseconds. */
+    static class Timer {
+
+        private final long[] samples = new long[SAMPLES];
+        private long count;
+        private long max;
+
+        synchronized void add(long nanos) {
+
+            samples[(int)(count % SAMPLES)] = nanos;
+            count++;
+            if (nanos > max) max = nanos;
+        }
+
+        /** Returns {count, median, 99th percentile, maximum}, with the percentiles taken over the recent samples. */
+        synchronized long[] getStatistics() {
+
+            int n = (int)Math.min(count, SAMPLES);
+            if (n == 0)
+                return new long[] {0, 0, 0, 0};
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            return new long[] {count, percentile(sorted, 0.5), percentile(sorted, 0.99), max};
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            int index = (int)Math.ceil(p*sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length-1, index) )];
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes the Metrics over JMX, e.g. to JConsole or VisualVM.
+ *
+ * Timers and counters are created as they are first used, so the attributes
+ * are worked out afresh each time the bean is described: one per counter and
+ * gauge, and count, p50Ms, p99Ms and maxMs for each timer. The bean also has
+ * reset() and report() operations. It is a dynamic MBean so that the plugin's
+ * classes can stay package-private. None of the attributes can be set.
+ *
+ * @author timothygrocott
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private final Metrics metrics;
+
+    MetricsMBean(Metrics metrics) {
+
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+
+        Number value = metrics.getValues().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+
+        throw new AttributeNotFoundException("Channels Plus metrics are read-only: " + attribute.getName() );
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+
+        TreeMap<String, Number> values = metrics.getValues();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes)
+            if (values.containsKey(attribute)) list.add( new Attribute(attribute, values.get(attribute) ) );
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+
+        if ("reset".equals(actionName)) {
+            metrics.reset();
+            return null;
+        } else if ("report".equals(actionName)) {
+            return metrics.getReport();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName) );
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Number> entry : metrics.getValues().entrySet())
+            attributes.add( new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false) );
+        MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("reset", "Clears all timers and counters", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+            new MBeanOperationInfo("report", "Returns all metrics as text", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO)
+        };
+        return new MBeanInfo(getClass().getName(), "Channels Plus latency timers, counters and queue depths",
+                             attributes.toArray( new MBeanAttributeInfo[attributes.size()] ), null, operations, null);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Histograms the planes just ahead of the current one, in the direction the
+ * user is stepping through Z or T, so that they are already in the
+ * HistogramCache when the image gets there.
+ *
+ * Each move starts a new round of prefetching for the image and abandons
+ * whatever is left of the last one, down to the tile being histogrammed at
+ * the time. Prefetching runs on its own low-priority threads,
+ * channelsplus.prefetch.threads of them, each histogramming serially rather
+ * than on the shared fork/join pool, so that setting bounds the processors
+ * it takes. It also stands aside while the HistogramEngine has work of its
+ * own. Rounds are limited to
+ * channelsplus.prefetch.planes planes ahead, and to channelsplus.prefetch.budget
+ * of the histogram cache's memory, so prefetching can't push out more than
+ * that share of what the cache holds.
+ *
+ * @author timothygrocott
+ */
+class Prefetcher {
+
+    static final String PREF_ENABLED = "channelsplus.prefetch";
+    static final String PREF_PLANES = "channelsplus.prefetch.planes";
+    static final String PREF_THREADS = "channelsplus.prefetch.threads";
+    static final String PREF_BUDGET = "channelsplus.prefetch.budget";
+
+    private static Prefetcher instance;
+
+    private final ThreadPoolExecutor executor;
+    // Current round for each image; tasks from older rounds do nothing...
+    private final ConcurrentHashMap<Integer, Integer> rounds = new ConcurrentHashMap<Integer, Integer>();
+
+    private Prefetcher() {
+
+        int threads = Math.max(1, (int)Prefs.get(PREF_THREADS, 1) );
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Channels Plus Prefetch-" + count.incrementAndGet() );
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized Prefetcher getInstance() {
+
+        if (instance == null) instance = new Prefetcher();
+        return instance;
+    }
+
+    static boolean isEnabled() {
+        return Prefs.get(PREF_ENABLED, true);
+    }
+
+    /**
+     * Starts prefetching the given channels' planes beyond (z, t), in the
+     * direction of the last step (dz, dt). Must be called on the event
+     * dispatch thread.
+     */
+    void moved(ImagePlus imp, int[] channels, int z, int t, int dz, int dt) {
+
+        final int imageID = imp.getID();
+        final int round = nextRound(imageID);
+        if (!isEnabled() || channels.length == 0 || (dz == 0 && dt == 0))
+            return;
+        int bins = imp.getBitDepth() == 8 ? 256 : HistogramKernel.getBinCount();
+        HistogramCache cache = HistogramCache.getInstance();
+        // Keep the round within its share of the cache...
+        double budget = Math.max(0, Math.min(1, Prefs.get(PREF_BUDGET, 0.25) ));
+        long affordable = (long)(budget*cache.getMemoryCap()/HistogramCache.sizeOf(bins))/channels.length;
+        int planes = (int)Math.min(Math.max(0, (int)Prefs.get(PREF_PLANES, 4) ), affordable);
+        ImageStack stack = imp.getStack();
+        int nSlices = imp.getNSlices();
+        int nFrames = imp.getNFrames();
+        int stepZ = Integer.signum(dz);
+        int stepT = Integer.signum(dt);
+        // Nearest planes first, every channel of each before moving on to the next...
+        for (int k = 1; k <= planes; k++) {
+            int pz = z + k*stepZ;
+            int pt = t + k*stepT;
+            if (pz < 1 || pz > nSlices || pt < 1 || pt > nFrames)
+                break;
+            for (int i = 0; i < channels.length; i++) {
+                long version = cache.getVersion(imageID, channels[i], pz, pt);
+                HistogramCache.Key key = new HistogramCache.Key(imageID, channels[i], pz, pt, version, bins);
+                if (cache.contains(key))
+                    continue;
+                schedule(imageID, round, key, stack, imp.getStackIndex(channels[i], pz, pt) );
+            }
+        }
+    }
+
+    /** Abandons any prefetching for an image. */
+    void cancel(int imageID) {
+
+        nextRound(imageID);
+        rounds.remove(imageID);
+    }
+
+    private int nextRound(int imageID) {
+
+        Integer round = rounds.get(imageID);
+        int next = round == null ? 1 : round + 1;
+        rounds.put(imageID, next);
+        return next;
+    }
+
+    private boolean isCurrent(int imageID, int round) {
+
+        Integer current = rounds.get(imageID);
+        return current != null && current == round;
+    }
+
+    private void schedule(final int imageID, final int round, final HistogramCache.Key key,
+                          final ImageStack stack, final int index) {
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    prefetch(imageID, round, key, stack, index);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Prefetching is only ever a head start
+        }
+    }
+
+    private void prefetch(final int imageID, final int round, HistogramCache.Key key, ImageStack stack, int index) {
+
+        HistogramEngine engine = HistogramEngine.getInstance();
+        HistogramCache cache = HistogramCache.getInstance();
+        // Let the histograms the user is waiting for go first...
+        if (!isCurrent(imageID, round))
+            return;
+        try {
+            engine.awaitIdle();
+        } catch (InterruptedException e) {
+            return;
+        }
+        if (!isCurrent(imageID, round) || cache.contains(key)) {
+            Metrics.getInstance().count("prefetch.skipped");
+            return;
+        }
+        long start = System.nanoTime();
+        HistogramData hist;
+        try {
+            hist = HistogramKernel.computeSerial(stack.getProcessor(index), key.bins, new HistogramKernel.Cancellation() {
+                @Override
+                public boolean isCancelled() {
+                    return !isCurrent(imageID, round);
+                }
+            });
+        } catch (RuntimeException e) {
+            IJ.handleException(e);
+            return;
+        }
+        if (hist == null) {
+            Metrics.getInstance().count("prefetch.abandoned");
+            return;
+        }
+        cache.put(key, hist);
+        Metrics.getInstance().record("prefetch.compute", start);
+    }
+}
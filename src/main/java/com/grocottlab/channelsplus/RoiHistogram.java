@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.ImageCanvas;
+import ij.gui.Roi;
+import ij.gui.RoiListener;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
+
+/**
+ * Histograms of the pixels inside an image's selection, for every channel
+ * shown, kept up to date as the selection is drawn, moved or resized.
+ *
+ * Only the pixels within the selection's bounds and mask are read. Each
+ * channel keeps one bin per value (8 and 16-bit) or bins over the plane's
+ * range (32-bit), so when the selection changes only the pixels that have
+ * left it are taken out and those that have entered it are added. For a
+ * rectangle being dragged, that is a strip along each edge it moves across.
+ * Other shapes are compared row by row over the old and new bounds, and the
+ * difference is worked out once for all channels. Without an area selection
+ * the whole plane is histogrammed.
+ *
+ * Counting is done on one background thread shared by all images, which
+ * always works from the latest selection, so updates that arrive faster
+ * than they can be counted are merged. Results are handed back on the event
+ * dispatch thread. Apart from that, all methods must be called on the event
+ * dispatch thread.
+ *
+ * @author timothygrocott
+ */
+class RoiHistogram implements RoiListener {
+
+    private static final ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Channels Plus ROI Histogram");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    static {
+        worker.allowCoreThreadTimeOut(true);
+    }
+    private static long sequence;
+
+    private final ImagePlus imp;
+    private final int width;
+    private final int height;
+    // Channels being histogrammed, as last asked for...
+    private final HashMap<Integer, Source> sources = new HashMap<Integer, Source>();
+    private Shape shape;
+    private volatile Snapshot snapshot;
+    private final AtomicBoolean queued = new AtomicBoolean();
+    // Worker thread only: the counts of each channel for the shape they were last brought up to date with...
+    private final HashMap<Integer, Counts> counts = new HashMap<Integer, Counts>();
+    private ImageCanvas canvas;
+    private final MouseAdapter dragListener = new MouseAdapter() {
+        @Override
+        public void mouseDragged(MouseEvent e) {
+            selectionChanged();
+        }
+    };
+
+    RoiHistogram(ImagePlus imp) {
+
+        this.imp = imp;
+        width = imp.getWidth();
+        height = imp.getHeight();
+        shape = getShape();
+        Roi.addRoiListener(this);
+        // ImageJ only reports a moved selection once the mouse is released, so follow the drag itself as well...
+        canvas = imp.getCanvas();
+        if (canvas != null) canvas.addMouseMotionListener(dragListener);
+    }
+
+    /** Histograms a channel's plane at the image's current slice and frame, within the selection. */
+    void submit(int channel, HistogramEngine.Listener listener) {
+
+        int z = imp.getZ();
+        int t = imp.getT();
+        int bins = imp.getBitDepth() == 8 ? 256 : HistogramKernel.getBinCount();
+        sources.put(channel, new Source(++sequence, imp.getStack(), imp.getStackIndex(channel, z, t), bins, listener) );
+        publish();
+    }
+
+    /** Stops histogramming a channel for the given listener. */
+    void remove(int channel, HistogramEngine.Listener listener) {
+
+        Source source = sources.get(channel);
+        if (source != null && source.listener == listener) {
+            sources.remove(channel);
+            publish();
+        }
+    }
+
+    void release() {
+
+        Roi.removeRoiListener(this);
+        if (canvas != null) canvas.removeMouseMotionListener(dragListener);
+        sources.clear();
+        publish();
+    }
+
+    @Override
+    public void roiModified(ImagePlus roiImage, int id) {
+
+        if (roiImage == null || roiImage.getID() != imp.getID())
+            return;
+        if (SwingUtilities.isEventDispatchThread()) {
+            selectionChanged();
+        } else {
+            // Macros and other plugins can change selections from their own threads...
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    selectionChanged();
+                }
+            });
+        }
+    }
+
+    private void selectionChanged() {
+
+        Shape newShape = getShape();
+        if (newShape.equals(shape))
+            return;
+        shape = newShape;
+        Metrics.getInstance().count("roi.changes");
+        publish();
+    }
+
+    /** Returns the image's area selection, or the whole plane if it has none. */
+    private Shape getShape() {
+
+        Roi roi = imp.getRoi();
+        if (roi == null || !roi.isArea())
+            return new Shape(new Rectangle(0, 0, width, height), null);
+        Rectangle bounds = roi.getBounds();
+        // Plain rectangles have no mask...
+        ImageProcessor mask = roi.getMask();
+        return new Shape(bounds, mask == null ? null : (byte[])mask.getPixels() );
+    }
+
+    /** Passes the latest selection and channels to the worker, queueing it if it isn't already. */
+    private void publish() {
+
+        snapshot = new Snapshot(shape, new HashMap<Integer, Source>(sources) );
+        if (queued.compareAndSet(false, true)) {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    update();
+                }
+            });
+        }
+    }
+
+    /** Brings every channel's counts up to date with the latest selection. Runs on the worker thread. */
+    private void update() {
+
+        queued.set(false);
+        Snapshot s = snapshot;
+        long start = System.nanoTime();
+        // Differences between shapes, worked out once and applied to every channel...
+        IdentityHashMap<Shape, int[]> diffs = new IdentityHashMap<Shape, int[]>();
+        Iterator<Map.Entry<Integer, Counts>> it = counts.entrySet().iterator();
+        while (it.hasNext())
+            if (!s.sources.containsKey( it.next().getKey() )) it.remove();
+        for (Map.Entry<Integer, Source> entry : s.sources.entrySet()) {
+            Source source = entry.getValue();
+            Counts c = counts.get( entry.getKey() );
+            try {
+                if (c == null || c.seq != source.seq) {
+                    // A new plane, or new pixels: count the selection from scratch...
+                    c = new Counts(source);
+                    counts.put(entry.getKey(), c);
+                } else if (c.shape == s.shape) {
+                    continue;
+                }
+                Shape from = c.shape;
+                int[] runs = from == null ? null : diffs.get(from);
+                if (runs == null) {
+                    runs = diff(from, s.shape, width, height);
+                    if (from != null) diffs.put(from, runs);
+                }
+                c.apply(runs);
+                c.shape = s.shape;
+            } catch (RuntimeException e) {
+                counts.remove( entry.getKey() );
+                IJ.handleException(e);
+                continue;
+            }
+            deliver(entry.getKey(), source, c.getHistogram() );
+        }
+        Metrics.getInstance().record("roi.update", start);
+    }
+
+    private void deliver(final int channel, final Source source, final HistogramData hist) {
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                // Drop results for channels that have since been asked for again, or let go...
+                if (sources.get(channel) == source)
+                    source.listener.histogramComputed(hist);
+            }
+        });
+    }
+
+    /**
+     * Returns the pixels that have to be taken out of, and put into, counts
+     * for one shape to make them counts for another, as runs of pixel indices
+     * {from, to, +1 or -1}. A null old shape stands for no pixels at all.
+     */
+    static int[] diff(Shape a, Shape b, int width, int height) {
+
+        Runs runs = new Runs();
+        Rectangle u = a == null ? b.bounds : a.bounds.union(b.bounds);
+        int y0 = Math.max(0, u.y);
+        int y1 = Math.min(height, u.y + u.height);
+        int x0 = Math.max(0, u.x);
+        int x1 = Math.min(width, u.x + u.width);
+        boolean rectangles = (a == null || a.mask == null) && b.mask == null;
+        for (int y = y0; y < y1; y++) {
+            int row = y*width;
+            if (rectangles) {
+                // Strips: the old row span minus the new, and the new minus the old...
+                int a0 = 0, a1 = 0;
+                if (a != null && y >= a.bounds.y && y < a.bounds.y + a.bounds.height) {
+                    a0 = Math.max(x0, a.bounds.x);
+                    a1 = Math.min(x1, a.bounds.x + a.bounds.width);
+                }
+                int b0 = 0, b1 = 0;
+                if (y >= b.bounds.y && y < b.bounds.y + b.bounds.height) {
+                    b0 = Math.max(x0, b.bounds.x);
+                    b1 = Math.min(x1, b.bounds.x + b.bounds.width);
+                }
+                subtract(runs, row, a0, a1, b0, b1, -1);
+                subtract(runs, row, b0, b1, a0, a1, 1);
+            } else {
+                // Compare the shapes pixel by pixel, without reading the pixels themselves...
+                int runStart = x0;
+                int runSign = 0;
+                for (int x = x0; x <= x1; x++) {
+                    int sign = 0;
+                    if (x < x1)
+                        sign = (b.contains(x, y) ? 1 : 0) - (a != null && a.contains(x, y) ? 1 : 0);
+                    if (sign != runSign) {
+                        if (runSign != 0) runs.add(row + runStart, row + x, runSign);
+                        runStart = x;
+                        runSign = sign;
+                    }
+                }
+            }
+        }
+        return runs.toArray();
+    }
+
+    /** Adds the parts of [a0, a1) outside [b0, b1) as runs of the given sign. */
+    private static void subtract(Runs runs, int row, int a0, int a1, int b0, int b1, int sign) {
+
+        if (a1 <= a0)
+            return;
+        if (b1 <= b0 || b1 <= a0 || b0 >= a1) {
+            runs.add(row + a0, row + a1, sign);
+            return;
+        }
+        if (a0 < b0) runs.add(row + a0, row + b0, sign);
+        if (b1 < a1) runs.add(row + b1, row + a1, sign);
+    }
+
+    /** A selection's bounds and, for shapes other than rectangles, its mask. */
+    static class Shape {
+
+        final Rectangle bounds;
+        final byte[] mask;
+
+        Shape(Rectangle bounds, byte[] mask) {
+            this.bounds = bounds;
+            this.mask = mask;
+        }
+
+        boolean contains(int x, int y) {
+
+            int dx = x - bounds.x;
+            int dy = y - bounds.y;
+            if (dx < 0 || dy < 0 || dx >= bounds.width || dy >= bounds.height)
+                return false;
+            return mask == null || mask[dy*bounds.width + dx] != 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Shape))
+                return false;
+            Shape other = (Shape)o;
+            return bounds.equals(other.bounds) && Arrays.equals(mask, other.mask);
+        }
+
+        @Override
+        public int hashCode() {
+            return bounds.hashCode();
+        }
+    }
+
+    /** One channel's plane, as asked for. */
+    private static class Source {
+
+        final long seq;
+        final ImageStack stack;
+        final int index;
+        final int bins;
+        final HistogramEngine.Listener listener;
+
+        Source(long seq, ImageStack stack, int index, int bins, HistogramEngine.Listener listener) {
+            this.seq = seq;
+            this.stack = stack;
+            this.index = index;
+            this.bins = bins;
+            this.listener = listener;
+        }
+    }
+
+    private static class Snapshot {
+
+        final Shape shape;
+        final HashMap<Integer, Source> sources;
+
+        Snapshot(Shape shape, HashMap<Integer, Source> sources) {
+            this.shape = shape;
+            this.sources = sources;
+        }
+    }
+
+    /** Counts of the pixels of one plane within a shape. */
+    private class Counts {
+
+        final long seq;
+        final int bins;
+        final Object pixels;
+        final int[] counts;
+        // Float binning, over the whole plane's range so that it never changes as the selection moves...
+        double min, max, scale;
+        Shape shape;
+
+        Counts(Source source) {
+
+            seq = source.seq;
+            bins = source.bins;
+            // Virtual stacks read the plane in once here, and it is kept while the selection moves over it...
+            pixels = source.stack.isVirtual() ? source.stack.getProcessor(source.index).getPixels()
+                                              : source.stack.getPixels(source.index);
+            if (pixels instanceof byte[]) {
+                counts = new int[256];
+            } else if (pixels instanceof short[]) {
+                counts = new int[65536];
+            } else {
+                float[] fPixels = (float[])pixels;
+                double[] minMax = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                HistogramKernel.minMax32(fPixels, 0, fPixels.length, minMax);
+                double[] range = HistogramKernel.range32(minMax[0], minMax[1]);
+                min = range[0];
+                max = range[1];
+                scale = bins/(max - min);
+                counts = new int[bins];
+            }
+        }
+
+        void apply(int[] runs) {
+
+            for (int r = 0; r < runs.length; r += 3) {
+                int from = runs[r];
+                int to = runs[r+1];
+                int sign = runs[r+2];
+                if (pixels instanceof byte[]) {
+                    byte[] p = (byte[])pixels;
+                    for (int i = from; i < to; i++) counts[p[i] & 0xff] += sign;
+                } else if (pixels instanceof short[]) {
+                    short[] p = (short[])pixels;
+                    for (int i = from; i < to; i++) counts[p[i] & 0xffff] += sign;
+                } else {
+                    float[] p = (float[])pixels;
+                    int last = counts.length - 1;
+                    for (int i = from; i < to; i++) {
+                        float v = p[i];
+                        if ( !(v >= min) || v == Float.POSITIVE_INFINITY) continue;
+                        int bin = (int)( (v - min)*scale );
+                        counts[bin > last ? last : bin] += sign;
+                    }
+                }
+            }
+        }
+
+        HistogramData getHistogram() {
+
+            if (pixels instanceof byte[])
+                return HistogramKernel.fromCounts8( counts.clone() );
+            if (pixels instanceof short[])
+                return HistogramKernel.fromCounts16(counts, bins);
+            int first = 0;
+            while (first < counts.length && counts[first] == 0) first++;
+            int last = counts.length - 1;
+            while (last > first && counts[last] == 0) last--;
+            if (first == counts.length)
+                return new HistogramData( counts.clone(), min, max, min, min );
+            // The values found are only known to within a bin...
+            return new HistogramData( counts.clone(), min, max, min + first/scale, Math.min(max, min + (last+1)/scale) );
+        }
+    }
+
+    /** Growable list of {from, to, sign} runs. */
+    private static class Runs {
+
+        private int[] runs = new int[48];
+        private int size;
+
+        void add(int from, int to, int sign) {
+
+            if (to <= from)
+                return;
+            if (size + 3 > runs.length) runs = Arrays.copyOf(runs, runs.length*2);
+            runs[size++] = from;
+            runs[size++] = to;
+            runs[size++] = sign;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(runs, size);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.FileInfo;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Persistent store of DisplaySettings, keyed by the path of the file each
+ * image was opened from.
+ *
+ * Records are appended to a single data file, and an index file lists the
+ * 64-bit hash of each record's path with the record's offset and length. The
+ * index is read once, into memory, so looking up an image is one hash lookup
+ * and one read, however many images the store holds. A record that is
+ * replaced stays in the data file until superseded records make up more than
+ * half of it, when the store is compacted. Each record starts with its full
+ * path, so two paths with the same hash are never confused.
+ *
+ * Both files start with the generation of the store they belong to, which
+ * compaction moves on. An index is only used with a data file of the same
+ * generation, so if compaction is cut short between replacing the index and
+ * replacing the data file, the new data file is taken from where it was
+ * written rather than the old one being read at the new offsets.
+ *
+ * Images not opened from a file have no key and are not stored. Keys are not
+ * taken from the pixels, as that would mean reading them all.
+ *
+ * @author timothygrocott
+ */
+class SettingsStore {
+
+    static final String PREF_ENABLED = "channelsplus.settings.store";
+    static final String PREF_DIR = "channelsplus.settings.dir";
+    private static final int MAGIC = 0x43505332; // "CPS2"
+    private static final int HEADER_SIZE = 12;
+    private static final long MIN_COMPACT_SIZE = 1024*1024;
+
+    private static SettingsStore instance;
+
+    private final File dataFile;
+    private final File indexFile;
+    private final File newDataFile;
+    private final File newIndexFile;
+    private long generation;
+    // Offset and length of the latest record, by path hash...
+    private HashMap<Long, long[]> index;
+    private long liveBytes;
+    // Images whose settings have already been restored this session...
+    private final HashSet<Integer> restored = new HashSet<Integer>();
+
+    SettingsStore(File dir) {
+
+        dataFile = new File(dir, "display-settings.dat");
+        indexFile = new File(dir, "display-settings.idx");
+        newDataFile = new File(dataFile.getPath() + ".tmp");
+        newIndexFile = new File(indexFile.getPath() + ".tmp");
+    }
+
+    static synchronized SettingsStore getInstance() {
+
+        if (instance == null) {
+            String dir = Prefs.get(PREF_DIR, "");
+            if (dir.length() == 0) {
+                String prefsDir = Prefs.getPrefsDir();
+                dir = new File(prefsDir == null ? System.getProperty("user.home") : prefsDir, "channelsplus").getPath();
+            }
+            instance = new SettingsStore( new File(dir) );
+        }
+        return instance;
+    }
+
+    static boolean isEnabled() {
+        return Prefs.get(PREF_ENABLED, true);
+    }
+
+    /** Returns the path an image was opened from, or null if it wasn't opened from a file. */
+    static String getKey(ImagePlus imp) {
+
+        FileInfo fi = imp.getOriginalFileInfo();
+        if (fi == null)
+            return null;
+        if (fi.directory != null && fi.fileName != null && fi.fileName.length() > 0)
+            return new File(fi.directory, fi.fileName).getAbsolutePath();
+        if (fi.url != null && fi.url.length() > 0)
+            return fi.url;
+        return null;
+    }
+
+    /** Returns the settings last saved for an image, or null if there are none. */
+    synchronized DisplaySettings load(ImagePlus imp) {
+
+        String key = getKey(imp);
+        if (key == null || !isEnabled())
+            return null;
+        try {
+            byte[] record = readRecord( hash(key) );
+            if (record == null)
+                return null;
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream(record) );
+            if (!key.equals( in.readUTF() ))
+                return null; // Another path with the same hash
+            return DisplaySettings.read(in);
+        } catch (IOException e) {
+            IJ.log("Channels Plus: could not read display settings for " + key + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    /** Forgets that an image's settings were restored, once it has closed. */
+    synchronized void remove(int imageID) {
+
+        restored.remove(imageID);
+    }
+
+    /**
+     * Applies the settings last saved for an image, the first time it is asked
+     * for each image only, so that changes made since it was opened are kept.
+     * Returns the settings applied, or null if there were none that fit.
+     */
+    synchronized DisplaySettings restore(ImagePlus imp) {
+
+        if (!restored.add( imp.getID() ))
+            return null;
+        long start = System.nanoTime();
+        DisplaySettings settings = load(imp);
+        if (settings == null || !settings.fits(imp))
+            return null;
+        settings.apply(imp);
+        Metrics.getInstance().record("settings.restore", start);
+        return settings;
+    }
+
+    /** Saves an image's settings, unless they are the same as those already saved. */
+    synchronized void save(ImagePlus imp, DisplaySettings settings) {
+
+        save(getKey(imp), settings);
+    }
+
+    /** Saves settings under a key from getKey(), or does nothing if the key is null. */
+    synchronized void save(String key, DisplaySettings settings) {
+
+        if (key == null || !isEnabled())
+            return;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(key);
+            settings.write(out);
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            long hash = hash(key);
+            if (Arrays.equals(record, readRecord(hash) ))
+                return;
+            append(hash, record);
+            if (dataFile.length() > MIN_COMPACT_SIZE && liveBytes < dataFile.length()/2)
+                compact();
+        } catch (IOException e) {
+            IJ.log("Channels Plus: could not save display settings for " + key + " (" + e.getMessage() + ")");
+        }
+    }
+
+    synchronized int size() {
+
+        try {
+            loadIndex();
+        } catch (IOException e) {
+            return 0;
+        }
+        return index.size();
+    }
+
+    private byte[] readRecord(long hash) throws IOException {
+
+        loadIndex();
+        long[] entry = index.get(hash);
+        if (entry == null)
+            return null;
+        byte[] record = new byte[(int)entry[1]];
+        RandomAccessFile data = new RandomAccessFile(dataFile, "r");
+        try {
+            data.seek(entry[0]);
+            data.readFully(record);
+        } finally {
+            data.close();
+        }
+        return record;
+    }
+
+    private void append(long hash, byte[] record) throws IOException {
+
+        loadIndex();
+        if (!dataFile.exists() || !indexFile.exists())
+            writeHeaders();
+        long offset = dataFile.length();
+        FileOutputStream data = new FileOutputStream(dataFile, true);
+        try {
+            data.write(record);
+        } finally {
+            data.close();
+        }
+        // The index entry goes in last, so a record is only ever found once it has been written in full...
+        DataOutputStream idx = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(indexFile, true) ));
+        try {
+            writeEntry(idx, hash, offset, record.length);
+        } finally {
+            idx.close();
+        }
+        putEntry(hash, offset, record.length);
+    }
+
+    private void loadIndex() throws IOException {
+
+        if (index != null)
+            return;
+        index = new HashMap<Long, long[]>();
+        liveBytes = 0;
+        if (!indexFile.exists())
+            return;
+        long indexGeneration = readGeneration(indexFile);
+        if (indexGeneration < 0 || indexGeneration != readGeneration(dataFile)) {
+            // Finish a compaction that stopped after replacing the index, or start again if that isn't possible...
+            if (indexGeneration < 0 || readGeneration(newDataFile) != indexGeneration
+                    || (dataFile.exists() && !dataFile.delete()) || !newDataFile.renameTo(dataFile)) {
+                IJ.log("Channels Plus: display settings store was incomplete, starting a new one");
+                writeHeaders();
+                return;
+            }
+        }
+        generation = indexGeneration;
+        long dataLength = dataFile.length();
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(indexFile), 65536 ));
+        try {
+            in.skipBytes(HEADER_SIZE);
+            while (true) {
+                long hash = in.readLong();
+                long offset = in.readLong();
+                int length = in.readInt();
+                // Skip entries for records that never made it to the data file...
+                if (offset + length <= dataLength)
+                    putEntry(hash, offset, length);
+            }
+        } catch (EOFException e) {
+            // End of the index, possibly part way through an entry that was being written
+        } finally {
+            in.close();
+        }
+    }
+
+    private void putEntry(long hash, long offset, int length) {
+
+        long[] old = index.put(hash, new long[] {offset, length});
+        if (old != null) liveBytes -= old[1];
+        liveBytes += length;
+    }
+
+    /** Returns the generation a store file belongs to, or -1 if it is missing or not a store file. */
+    private static long readGeneration(File file) throws IOException {
+
+        if (!file.exists() || file.length() < HEADER_SIZE)
+            return -1;
+        DataInputStream in = new DataInputStream( new FileInputStream(file) );
+        try {
+            return in.readInt() == MAGIC ? in.readLong() : -1;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Rewrites the store with only the latest record for each path. */
+    void compact() throws IOException {
+
+        long newGeneration = Math.max(generation + 1, System.currentTimeMillis() );
+        HashMap<Long, long[]> newEntries = new HashMap<Long, long[]>();
+        RandomAccessFile data = new RandomAccessFile(dataFile, "r");
+        DataOutputStream dataOut = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(newDataFile), 65536 ));
+        DataOutputStream idxOut = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(newIndexFile), 65536 ));
+        try {
+            writeHeader(dataOut, newGeneration);
+            writeHeader(idxOut, newGeneration);
+            long offset = HEADER_SIZE;
+            for (Map.Entry<Long, long[]> entry : index.entrySet()) {
+                byte[] record = new byte[(int)entry.getValue()[1]];
+                data.seek(entry.getValue()[0]);
+                data.readFully(record);
+                dataOut.write(record);
+                writeEntry(idxOut, entry.getKey(), offset, record.length);
+                newEntries.put(entry.getKey(), new long[] {offset, record.length});
+                offset += record.length;
+            }
+        } finally {
+            data.close();
+            dataOut.close();
+            idxOut.close();
+        }
+        // Once the new index is in place the old data file no longer matches it, and loadIndex() finishes the job if we don't...
+        if (!indexFile.delete() || !newIndexFile.renameTo(indexFile) || !dataFile.delete() || !newDataFile.renameTo(dataFile)) {
+            index = null;
+            throw new IOException("could not replace " + dataFile);
+        }
+        index = newEntries;
+        generation = newGeneration;
+    }
+
+    /** Starts an empty store, of a generation no leftover file can belong to. */
+    private void writeHeaders() throws IOException {
+
+        File dir = dataFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        generation = Math.max(generation + 1, System.currentTimeMillis() );
+        DataOutputStream data = new DataOutputStream( new FileOutputStream(dataFile) );
+        try {
+            writeHeader(data, generation);
+        } finally {
+            data.close();
+        }
+        DataOutputStream idx = new DataOutputStream( new FileOutputStream(indexFile) );
+        try {
+            writeHeader(idx, generation);
+        } finally {
+            idx.close();
+        }
+        index = new HashMap<Long, long[]>();
+        liveBytes = 0;
+    }
+
+    private static void writeHeader(DataOutputStream out, long generation) throws IOException {
+
+        out.writeInt(MAGIC);
+        out.writeLong(generation);
+    }
+
+    private static void writeEntry(DataOutputStream out, long hash, long offset, int length) throws IOException {
+
+        out.writeLong(hash);
+        out.writeLong(offset);
+        out.writeInt(length);
+    }
+
+    /** 64-bit FNV-1a hash of a path. */
+    static long hash(String key) {
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.Prefs;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import javax.swing.JPanel;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+
+/**
+ * Scrollable list of channel tracks that only builds the tracks in view.
+ *
+ * The list is as tall as every channel's track would be, but holds just
+ * enough ChannelTracks to cover the viewport. As it scrolls, tracks that
+ * leave the view are rebound to the channels coming into it, so an image
+ * with dozens of channels only ever has a handful of tracks, and only the
+ * channels on screen are histogrammed. Channel c is always shown by track
+ * c modulo the pool size, so tracks that stay in view keep their channel.
+ *
+ * @author timothygrocott
+ */
+class TrackList extends JPanel implements Scrollable {
+
+    static final String PREF_VISIBLE = "channelsplus.tracks.visible";
+
+    private final ChannelsPlusGUI gui;
+    private final int channels;
+    private final ArrayList<ChannelTrack> tracks = new ArrayList<ChannelTrack>();
+    private final int trackWidth;
+    private final int trackHeight;
+
+    TrackList(ChannelsPlusGUI gui) {
+
+        super(null);
+        this.gui = gui;
+        channels = gui.channels;
+        // Measure tracks with the first one, which is kept as part of the pool...
+        ChannelTrack first = new ChannelTrack(gui, 0);
+        Dimension size = first.getPreferredSize();
+        trackWidth = size.width;
+        trackHeight = size.height;
+        tracks.add(first);
+        add(first);
+        setPreferredSize( new Dimension(trackWidth, channels*trackHeight) );
+    }
+
+    /** Returns the number of tracks shown without scrolling when the dialog opens. */
+    static int getVisibleTracks() {
+        return Math.max(1, (int)Prefs.get(PREF_VISIBLE, 8) );
+    }
+
+    boolean isScrolling() {
+        return channels > getVisibleTracks();
+    }
+
+    @Override
+    public void doLayout() {
+        layoutTracks();
+    }
+
+    /** Binds and positions just enough tracks to cover the visible part of the list. */
+    void layoutTracks() {
+
+        Rectangle view = getVisibleRect();
+        if (view.height <= 0)
+            view.height = getVisibleTracks()*trackHeight;
+        // One extra track covers a partly visible one at each end...
+        int n = Math.min(channels, (view.height + trackHeight - 1)/trackHeight + 1);
+        int first = Math.max(0, Math.min(channels - n, view.y/trackHeight) );
+        // Grow or shrink the pool to fit the view...
+        while (tracks.size() > n) {
+            ChannelTrack track = tracks.remove(tracks.size()-1);
+            track.release();
+            remove(track);
+        }
+        while (tracks.size() < n) {
+            int c = first + tracks.size();
+            ChannelTrack track = new ChannelTrack(gui, c);
+            tracks.add(track);
+            add(track);
+        }
+        for (int c = first; c < first + n; c++) {
+            ChannelTrack track = tracks.get(c % n);
+            track.bind(c);
+            track.setBounds(0, c*trackHeight, getWidth(), trackHeight);
+            track.validate();
+        }
+        repaint();
+    }
+
+    /** Brings the tracks in view up to date with the image, recomputing their histograms. */
+    void refresh() {
+
+        for (int i = 0; i < tracks.size(); i++)
+            tracks.get(i).refresh();
+    }
+
+    /** Brings the tracks' buttons up to date with the image, leaving their histograms alone. */
+    void updateState() {
+
+        for (int i = 0; i < tracks.size(); i++)
+            tracks.get(i).updateState();
+    }
+
+    /** Copies the text of the scribble strips in view to the GUI's channel names. */
+    void saveNames() {
+
+        for (int i = 0; i < tracks.size(); i++)
+            tracks.get(i).saveName();
+    }
+
+    void release() {
+
+        for (int i = 0; i < tracks.size(); i++)
+            tracks.get(i).release();
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return new Dimension(trackWidth, Math.min(channels, getVisibleTracks())*trackHeight);
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? trackHeight : 10;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        if (orientation != SwingConstants.VERTICAL)
+            return visibleRect.width;
+        return Math.max(trackHeight, (visibleRect.height/trackHeight)*trackHeight);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return false;
+    }
+}
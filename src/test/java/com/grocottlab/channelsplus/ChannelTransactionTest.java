@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+import java.awt.Color;
+import javax.swing.SwingUtilities;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the changes ChannelTransaction reads from macro text, and that they
+ * reach the image only on commit.
+ *
+ * @author timothygrocott
+ */
+public class ChannelTransactionTest {
+
+    private CompositeImage ci;
+
+    @Before
+    public void setUp() {
+
+        ImageStack stack = new ImageStack(8, 8);
+        for (int c = 0; c < 3; c++)
+            stack.addSlice( new ShortProcessor(8, 8) );
+        ImagePlus imp = new ImagePlus("test", stack);
+        imp.setDimensions(3, 1, 1);
+        ci = new CompositeImage(imp, CompositeImage.COMPOSITE);
+        for (int c = 1; c <= 3; c++)
+            ChannelAccess.setDisplayRange(ci, c, 0, 4095);
+    }
+
+    @Test
+    public void addsChangesFromText() throws Exception {
+
+        final ChannelTransaction transaction = new ChannelTransaction(ci).add(" mute=1,3  range=2:10,200.5 lut=3:Fire ");
+        // Nothing changes before commit...
+        assertEquals("111", getMuteString());
+        commit(transaction);
+        assertEquals("010", getMuteString());
+        assertEquals(10, ChannelAccess.getDisplayRangeMin(ci, 2), 0);
+        assertEquals(200.5, ChannelAccess.getDisplayRangeMax(ci, 2), 0);
+        // A new LUT keeps the channel's range...
+        LUT lut = ChannelAccess.getLut(ci, 3);
+        assertEquals(0, lut.min, 0);
+        assertEquals(4095, lut.max, 0);
+        assertEquals(ChannelTransaction.getLut("Fire").getRGB(128), lut.getRGB(128) );
+        assertEquals(IJ.COMPOSITE, ci.getMode() );
+    }
+
+    @Test
+    public void soloAndComposite() throws Exception {
+
+        commit( new ChannelTransaction(ci).add("solo=2") );
+        assertEquals(IJ.COLOR, ci.getMode() );
+        assertEquals(2, ci.getC() );
+        // ImageJ shows only the current channel as active outside composite mode, so the mutes are set again...
+        commit( new ChannelTransaction(ci).add("composite mute=1 unmute=2,3") );
+        assertEquals(IJ.COMPOSITE, ci.getMode() );
+        assertEquals("011", getMuteString());
+    }
+
+    @Test
+    public void badTextChangesNothing() throws Exception {
+
+        String[] bad = {"mute=4", "mute=x", "range=1:5", "range=1:a,b", "lut=1", "lut=1:NoSuchLut", "blink=1"};
+        for (String changes : bad) {
+            ChannelTransaction transaction = new ChannelTransaction(ci).setLut(1, LUT.createLutFromColor(Color.red) );
+            try {
+                transaction.add("mute=2 " + changes);
+                fail("accepted " + changes);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            // The mute before the mistake wasn't added either...
+            commit(transaction);
+            assertEquals("111", getMuteString());
+        }
+        assertTrue( new ChannelTransaction(ci).add("  ").isEmpty() );
+        assertFalse( new ChannelTransaction(ci).add("composite").isEmpty() );
+    }
+
+    @Test
+    public void muteString() {
+
+        assertEquals("101", ChannelsPlusGUI.getMuteString(new boolean[] {true, false, true}) );
+        assertEquals("", ChannelsPlusGUI.getMuteString(new boolean[0]) );
+    }
+
+    /** Returns the image's active channels, which CompositeImage keeps in an array of its maximum channel count. */
+    private String getMuteString() {
+
+        boolean[] active = new boolean[ ci.getNChannels() ];
+        System.arraycopy(ci.getActiveChannels(), 0, active, 0, active.length);
+        return ChannelsPlusGUI.getMuteString(active);
+    }
+
+    /** Commits on the event dispatch thread, as the plugin does. */
+    private static void commit(final ChannelTransaction transaction) throws Exception {
+
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                transaction.commit();
+            }
+        });
+    }
+}
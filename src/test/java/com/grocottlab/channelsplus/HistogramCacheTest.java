@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks HistogramCache's eviction and pixel-data versioning.
+ *
+ * @author timothygrocott
+ */
+public class HistogramCacheTest {
+
+    // IDs ImageJ never hands out, so the shared cache's other entries are left alone...
+    private static int nextImageID = 1000000;
+
+    private final HistogramCache cache = HistogramCache.getInstance();
+    private long cap;
+    private int imageID;
+
+    @Before
+    public void setUp() {
+
+        cap = cache.getMemoryCap();
+        imageID = nextImageID++;
+    }
+
+    @After
+    public void tearDown() {
+
+        cache.remove(imageID);
+        cache.setMemoryCap(cap);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+
+        cache.setMemoryCap(Long.MAX_VALUE);
+        for (int c = 1; c <= 3; c++)
+            cache.put(key(c, 1, 1), histogram() );
+        // Use the first, so that the second is now the least recently used...
+        assertNotNull( cache.get( key(1, 1, 1) ));
+        long evictions = cache.getEvictions();
+        cache.setMemoryCap(cache.getMemoryUsed() - 1);
+        assertEquals(evictions + 1, cache.getEvictions() );
+        assertNull( cache.get( key(2, 1, 1) ));
+        assertNotNull( cache.get( key(1, 1, 1) ));
+        assertNotNull( cache.get( key(3, 1, 1) ));
+    }
+
+    @Test
+    public void tracksMemoryUsed() {
+
+        cache.setMemoryCap(Long.MAX_VALUE);
+        long used = cache.getMemoryUsed();
+        cache.put(key(1, 1, 1), histogram() );
+        assertTrue(cache.getMemoryUsed() > used);
+        cache.remove(imageID);
+        assertEquals(used, cache.getMemoryUsed() );
+    }
+
+    @Test
+    public void ignoresHistogramsOfOldPixels() {
+
+        cache.setMemoryCap(Long.MAX_VALUE);
+        HistogramCache.Key old = key(1, 1, 1);
+        cache.put(old, histogram() );
+        cache.invalidate(imageID);
+        assertNull( cache.get(old) );
+        // A histogram computed before the change, stored after it...
+        cache.put(old, histogram() );
+        assertNull( cache.get(old) );
+        HistogramCache.Key current = key(1, 1, 1);
+        HistogramData hist = histogram();
+        cache.put(current, hist);
+        assertSame(hist, cache.get(current) );
+    }
+
+    @Test
+    public void invalidatesOnePlaneAndItsStack() {
+
+        cache.setMemoryCap(Long.MAX_VALUE);
+        HistogramCache.Key changed = key(2, 3, 1);
+        HistogramCache.Key stack = key(2, 0, 0);
+        HistogramCache.Key slice = key(2, 4, 1);
+        HistogramCache.Key channel = key(1, 3, 1);
+        for (HistogramCache.Key key : new HistogramCache.Key[] {changed, stack, slice, channel})
+            cache.put(key, histogram() );
+        cache.invalidate(imageID, 2, 3, 1);
+        assertNull( cache.get(changed) );
+        assertNull( cache.get(stack) );
+        assertNotNull( cache.get(slice) );
+        assertNotNull( cache.get(channel) );
+        assertEquals(slice.version, cache.getVersion(imageID, 2, 4, 1) );
+        assertTrue( cache.getVersion(imageID, 2, 3, 1) != changed.version );
+        // A whole-image change still reaches every plane...
+        cache.invalidate(imageID);
+        assertNull( cache.get(slice) );
+        assertNull( cache.get(channel) );
+        assertTrue( cache.getVersion(imageID, 2, 3, 1) != changed.version );
+    }
+
+    private HistogramCache.Key key(int c, int z, int t) {
+        return new HistogramCache.Key(imageID, c, z, t, cache.getVersion(imageID, c, z, t), 256);
+    }
+
+    private static HistogramData histogram() {
+        return new HistogramData(new int[256], 0, 256, 0, 255);
+    }
+}
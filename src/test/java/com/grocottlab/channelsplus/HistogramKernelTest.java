@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.FloatStatistics;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks HistogramKernel's counts against ImageJ's own histograms.
+ *
+ * @author timothygrocott
+ */
+public class HistogramKernelTest {
+
+    @Test
+    public void bytePlaneMatchesImageJ() {
+
+        ByteProcessor ip = randomBytes(301, 207, 1);
+        HistogramData hist = HistogramKernel.compute(ip, 256);
+        assertArrayEquals(ip.getHistogram(), hist.counts);
+        assertEquals(0, hist.min, 0);
+        assertEquals(256, hist.max, 0);
+    }
+
+    @Test
+    public void shortPlaneMatchesImageJ() {
+
+        ShortProcessor ip = randomShorts(301, 207, 100, 3000, 2);
+        int[] expected = ip.getHistogram();
+        // Bins one value wide over the data range...
+        HistogramData hist = HistogramKernel.compute(ip, 65536);
+        assertEquals(100, hist.dataMin, 0);
+        assertEquals(3000, hist.dataMax, 0);
+        for (int i = 0; i < hist.counts.length; i++)
+            assertEquals(expected[100 + i], hist.counts[i]);
+        // ...and regrouped into whole numbers of values per bin
+        hist = HistogramKernel.compute(ip, 256);
+        int width = (int)Math.round( hist.getBinWidth() );
+        assertEquals(12, width);
+        for (int v = 100; v <= 3000; v++)
+            hist.counts[(v - 100)/width] -= expected[v];
+        assertArrayEquals(new int[hist.counts.length], hist.counts);
+    }
+
+    @Test
+    public void floatPlaneMatchesImageJ() {
+
+        FloatProcessor ip = randomFloats(301, 207, 3);
+        assertFloatMatchesImageJ(ip);
+    }
+
+    /** Counts of a single-valued 16-bit plane. */
+    @Test
+    public void flatShortPlane() {
+
+        ShortProcessor ip = new ShortProcessor(64, 64);
+        ip.setValue(500);
+        ip.fill();
+        HistogramData hist = HistogramKernel.compute(ip, 256);
+        assertEquals(1, hist.counts.length);
+        assertEquals(64*64, hist.counts[0]);
+        assertEquals(500, hist.dataMin, 0);
+        assertEquals(500, hist.dataMax, 0);
+    }
+
+    /** Planes big enough to be split across the fork/join pool. */
+    @Test
+    public void largePlanesMatchImageJ() {
+
+        assertTrue(2048*1024 >= HistogramKernel.PARALLEL_THRESHOLD);
+        ByteProcessor bp = randomBytes(2048, 1024, 4);
+        assertArrayEquals(bp.getHistogram(), HistogramKernel.compute(bp, 256).counts);
+        ShortProcessor sp = randomShorts(2048, 1024, 0, 65535, 5);
+        int[] expected = sp.getHistogram();
+        HistogramData hist = HistogramKernel.compute(sp, 65536);
+        assertArrayEquals(expected, hist.counts);
+        assertFloatMatchesImageJ( randomFloats(2048, 1024, 6) );
+    }
+
+    @Test
+    public void accumulatorSumsPlanes() {
+
+        HistogramKernel.Accumulator accumulator = new HistogramKernel.Accumulator(8, 256);
+        int[] expected = new int[256];
+        for (int k = 0; k < 3; k++) {
+            ByteProcessor ip = randomBytes(101, 99, 10 + k);
+            int[] counts = ip.getHistogram();
+            for (int i = 0; i < 256; i++) expected[i] += counts[i];
+            accumulator.add(ip);
+        }
+        assertArrayEquals(expected, accumulator.getHistogram(256).counts);
+    }
+
+    /** Float planes further and further apart, widening the accumulator's range down and up. */
+    @Test
+    public void accumulatorWidensFloatRange() {
+
+        HistogramKernel.Accumulator accumulator = new HistogramKernel.Accumulator(32, 255);
+        float[][] planes = { {10, 11, 12, 13}, {-500, 0, 5, Float.NaN}, {9000, 20, 30, 40} };
+        for (float[] plane : planes)
+            accumulator.add( new FloatProcessor(2, 2, plane) );
+        HistogramData hist = accumulator.getHistogram(256);
+        assertEquals(256, hist.counts.length);
+        assertEquals(11, hist.getPixelCount() );
+        assertEquals(-500, hist.dataMin, 0);
+        assertEquals(9000, hist.dataMax, 0);
+        assertTrue(hist.min <= -500 && hist.max >= 9000);
+        // Every value is still in the bin that covers it...
+        for (float[] plane : planes)
+            for (float v : plane)
+                if (!Float.isNaN(v)) assertTrue(hist.counts[(int)Math.min(255, hist.getBin(v) )] > 0);
+    }
+
+    /** A long stack can put more pixels in one bin than an int holds. */
+    @Test
+    public void accumulatorClampsCountsPastIntRange() {
+
+        ByteProcessor ip = new ByteProcessor(4096, 4096);
+        HistogramKernel.Accumulator accumulator = new HistogramKernel.Accumulator(8, 256);
+        long planes = Integer.MAX_VALUE/(4096L*4096) + 1;
+        for (int k = 0; k < planes; k++)
+            accumulator.add(ip);
+        assertEquals(planes*4096*4096, accumulator.counts[0]);
+        assertEquals(Integer.MAX_VALUE, accumulator.getHistogram(256).counts[0]);
+        // The same goes for 16-bit totals regrouped into display bins...
+        HistogramKernel.Accumulator shorts = new HistogramKernel.Accumulator(16, 256);
+        shorts.counts[1000] = 3000000000L;
+        shorts.counts[1001] = 5;
+        HistogramData hist = shorts.getHistogram(256);
+        assertEquals(Integer.MAX_VALUE, hist.counts[0]);
+        assertEquals(1000, hist.dataMin, 0);
+        assertEquals(1001, hist.dataMax, 0);
+    }
+
+    @Test
+    public void sampledCountsCoverThePlane() {
+
+        int w = 2501;
+        int h = 2000;
+        int n = w*h;
+        int stride = HistogramKernel.getSampleStride(n, w);
+        assertTrue(stride > 1);
+        assertEquals(1, gcd(stride, w) );
+        assertEquals(1, HistogramKernel.getSampleStride(HistogramKernel.SAMPLING_THRESHOLD - 1, w) );
+        ShortProcessor ip = randomShorts(w, h, 0, 4095, 7);
+        HistogramData hist = HistogramKernel.computeSampled(ip, 256, stride);
+        assertTrue(hist.approximate);
+        long samples = (n + stride - 1)/stride;
+        assertEquals(samples*stride, hist.getPixelCount() );
+        // Uniform noise, so each bin holds about its share of the plane...
+        HistogramData exact = HistogramKernel.compute(ip, 256);
+        assertEquals(exact.counts.length, hist.counts.length);
+        for (int i = 0; i < exact.counts.length; i++)
+            assertEquals(exact.counts[i], hist.counts[i], 0.2*exact.counts[i]);
+    }
+
+    @Test
+    public void serialMatchesParallel() {
+
+        HistogramKernel.Cancellation never = new HistogramKernel.Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        ByteProcessor bp = randomBytes(2048, 1024, 8);
+        assertArrayEquals(bp.getHistogram(), HistogramKernel.computeSerial(bp, 256, never).counts);
+        ShortProcessor sp = randomShorts(2048, 1024, 40, 60000, 9);
+        assertArrayEquals(HistogramKernel.compute(sp, 256).counts, HistogramKernel.computeSerial(sp, 256, never).counts);
+        FloatProcessor fp = randomFloats(2048, 1024, 10);
+        HistogramData serial = HistogramKernel.computeSerial(fp, 256, never);
+        HistogramData parallel = HistogramKernel.compute(fp, 256);
+        assertArrayEquals(parallel.counts, serial.counts);
+        assertEquals(parallel.min, serial.min, 0);
+        assertEquals(parallel.max, serial.max, 0);
+    }
+
+    @Test
+    public void serialStopsWhenCancelled() {
+
+        final int[] tiles = new int[1];
+        HistogramKernel.Cancellation afterTwoTiles = new HistogramKernel.Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                return ++tiles[0] > 2;
+            }
+        };
+        assertNull( HistogramKernel.computeSerial(randomBytes(2048, 1024, 11), 256, afterTwoTiles) );
+        assertEquals(3, tiles[0]);
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    private static void assertFloatMatchesImageJ(FloatProcessor ip) {
+
+        HistogramData hist = HistogramKernel.compute(ip, 256);
+        ip.setHistogramSize(256);
+        ImageStatistics stats = new FloatStatistics(ip, ImageStatistics.MIN_MAX, null);
+        assertEquals(stats.min, hist.dataMin, 0);
+        assertEquals(stats.max, hist.dataMax, 0);
+        assertArrayEquals(stats.histogram, hist.counts);
+    }
+
+    static ByteProcessor randomBytes(int w, int h, long seed) {
+
+        Random random = new Random(seed);
+        byte[] pixels = new byte[w*h];
+        random.nextBytes(pixels);
+        return new ByteProcessor(w, h, pixels);
+    }
+
+    static ShortProcessor randomShorts(int w, int h, int min, int max, long seed) {
+
+        Random random = new Random(seed);
+        short[] pixels = new short[w*h];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (short)(min + random.nextInt(max - min + 1) );
+        // Make sure both ends of the range turn up...
+        pixels[0] = (short)min;
+        pixels[1] = (short)max;
+        return new ShortProcessor(w, h, pixels, null);
+    }
+
+    /** Gaussian noise, with a NaN and both infinities, which histograms skip. */
+    static FloatProcessor randomFloats(int w, int h, long seed) {
+
+        Random random = new Random(seed);
+        float[] pixels = new float[w*h];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (float)(1000 + 250*random.nextGaussian() );
+        pixels[3] = Float.NaN;
+        pixels[5] = Float.POSITIVE_INFINITY;
+        pixels[7] = Float.NEGATIVE_INFINITY;
+        return new FloatProcessor(w, h, pixels);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import java.awt.Color;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks MetadataIndex against Info text laid out as Bio-Formats gives it for
+ * Zeiss, OME-XML and Nikon files.
+ *
+ * @author timothygrocott
+ */
+public class MetadataIndexTest {
+
+    @Test
+    public void zeiss() {
+
+        MetadataIndex index = index(
+                "BitsPerPixel = 16\n"
+                + "Information|Image|Channel|Name #01 = DAPI\n"
+                + "Information|Image|Channel|Name #02 = AF488\n"
+                + "Information|Image|Channel|Color #01 = #FF0000FF\n"
+                + "Information|Image|Channel|Color #02 = #00FF00\n"
+                + "Information|Image|Channel|EmissionWavelength #01 = 465\n"
+                + "Information|Image|Channel|EmissionWavelength #02 = 517.5\n");
+        assertEquals("DAPI", index.getChannelName(1) );
+        assertEquals("AF488", index.getChannelName(2) );
+        assertNull( index.getChannelName(3) );
+        assertEquals(Color.blue, index.getChannelColor(1) );
+        assertEquals(Color.green, index.getChannelColor(2) );
+        assertEquals(465, index.getChannelWavelength(1), 0);
+        assertEquals(517.5, index.getChannelWavelength(2), 0);
+        assertTrue( Double.isNaN( index.getChannelWavelength(3) ));
+        assertEquals("16", index.get("BitsPerPixel") );
+    }
+
+    @Test
+    public void omeXml() {
+
+        MetadataIndex index = index(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<OME xmlns=\"http://www.openmicroscopy.org/Schemas/OME/2016-06\"><Image ID=\"Image:0\">"
+                + "<Pixels ID=\"Pixels:0\" SizeC=\"2\">"
+                + "<Channel ID=\"Channel:0:0\" Name=\"mCherry\" Color=\"-16776961\" EmissionWavelength=\"610\"/>"
+                + "<Channel ID=\"Channel:0:1\" Name=\"GFP\" Color=\"16711935\"/>"
+                + "</Pixels></Image></OME>");
+        assertEquals("mCherry", index.getChannelName(1) );
+        assertEquals("GFP", index.getChannelName(2) );
+        assertEquals(Color.red, index.getChannelColor(1) );
+        assertEquals(Color.green, index.getChannelColor(2) );
+        assertEquals(610, index.getChannelWavelength(1), 0);
+        assertTrue( Double.isNaN( index.getChannelWavelength(2) ));
+        assertEquals("Channel:0:1", index.get(MetadataIndex.OME_CHANNEL + "ID #2") );
+    }
+
+    @Test
+    public void nikon() {
+
+        MetadataIndex index = index(
+                "sDescription #1 = DAPI\n"
+                + "sDescription #2 = Cy5\n"
+                + "uiColor #1 = 16711680\n"
+                + "uiColor #2 = 255\n"
+                + "dEmissionWavelength #1 = 450.0\n"
+                + "Time: 12:00:01\n");
+        assertEquals("DAPI", index.getChannelName(1) );
+        assertEquals("Cy5", index.getChannelName(2) );
+        assertEquals(Color.blue, index.getChannelColor(1) );
+        assertEquals(Color.red, index.getChannelColor(2) );
+        assertEquals(450, index.getChannelWavelength(1), 0);
+        assertEquals("12:00:01", index.get("Time") );
+    }
+
+    @Test
+    public void firstValueOfRepeatedKeyIsKept() {
+
+        MetadataIndex index = index("Name #1 = first\nName #01 = second\nempty =\n");
+        assertEquals("first", index.get("Name #1") );
+        assertEquals("", index.get("empty") );
+        assertNull( index.getChannelName(1) );
+    }
+
+    @Test
+    public void indexIsRebuiltWhenInfoChanges() {
+
+        ImagePlus imp = new ImagePlus("test", new ByteProcessor(4, 4) );
+        imp.setProperty("Info", "sDescription #1 = A\n");
+        MetadataIndex index = MetadataIndex.get(imp);
+        assertSame(index, MetadataIndex.get(imp) );
+        imp.setProperty("Info", "sDescription #1 = B\n");
+        assertEquals("B", MetadataIndex.get(imp).getChannelName(1) );
+        MetadataIndex.remove( imp.getID() );
+    }
+
+    @Test
+    public void normaliseKey() {
+
+        assertEquals("Name #1", MetadataIndex.normaliseKey("Name #01") );
+        assertEquals("Name #10", MetadataIndex.normaliseKey("Name #010") );
+        assertEquals("Name #0", MetadataIndex.normaliseKey("Name #000") );
+        assertEquals("Name #12", MetadataIndex.normaliseKey("Name #12") );
+        assertEquals("Name #0a", MetadataIndex.normaliseKey("Name #0a") );
+        assertEquals("Name", MetadataIndex.normaliseKey("Name") );
+    }
+
+    private static MetadataIndex index(String info) {
+
+        ImagePlus imp = new ImagePlus("test", new ByteProcessor(4, 4) );
+        imp.setProperty("Info", info);
+        MetadataIndex index = MetadataIndex.get(imp);
+        MetadataIndex.remove( imp.getID() );
+        return index;
+    }
+}
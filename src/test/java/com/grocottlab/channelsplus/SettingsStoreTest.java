@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2024 Grocott Lab
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.grocottlab.channelsplus;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that SettingsStore gives back what it was given, across compaction
+ * and a compaction cut short.
+ *
+ * @author timothygrocott
+ */
+public class SettingsStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+
+        File dir = folder.newFolder();
+        CompositeImage ci = image("a.tif");
+        ci.setChannelLut(LUT.createLutFromColor(Color.magenta), 2);
+        ChannelAccess.setDisplayRange(ci, 2, 100, 900);
+        ci.setActiveChannels("101");
+        DisplaySettings saved = DisplaySettings.capture(ci, new String[] {"DAPI", "GFP", null});
+        new SettingsStore(dir).save(ci, saved);
+        DisplaySettings loaded = new SettingsStore(dir).load( image("a.tif") );
+        assertSettingsEqual(saved, loaded);
+        assertArrayEquals(new String[] {"DAPI", "GFP", ""}, loaded.names);
+        assertNull( new SettingsStore(dir).load( image("b.tif") ));
+    }
+
+    @Test
+    public void imagesWithoutAFileAreNotStored() throws IOException {
+
+        File dir = folder.newFolder();
+        SettingsStore store = new SettingsStore(dir);
+        CompositeImage ci = image(null);
+        assertNull( SettingsStore.getKey(ci) );
+        store.save(ci, DisplaySettings.capture(ci, null) );
+        assertEquals(0, store.size() );
+    }
+
+    @Test
+    public void compactionKeepsLatestRecords() throws IOException {
+
+        File dir = folder.newFolder();
+        SettingsStore store = new SettingsStore(dir);
+        DisplaySettings[] latest = saveRevisions(store, 3, 5);
+        File data = new File(dir, "display-settings.dat");
+        long before = data.length();
+        store.compact();
+        assertTrue(data.length() < before/4);
+        assertLatest(store, latest);
+        assertLatest(new SettingsStore(dir), latest);
+        // Saving carries on after compaction...
+        DisplaySettings[] more = saveRevisions(store, 3, 1);
+        assertLatest(new SettingsStore(dir), more);
+    }
+
+    /** A compaction that replaced the index but stopped before replacing the data file. */
+    @Test
+    public void interruptedCompactionIsFinished() throws IOException {
+
+        File dir = folder.newFolder();
+        SettingsStore store = new SettingsStore(dir);
+        DisplaySettings[] latest = saveRevisions(store, 3, 5);
+        File data = new File(dir, "display-settings.dat");
+        File old = folder.newFile();
+        Files.copy(data.toPath(), old.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        store.compact();
+        Files.move(data.toPath(), new File(dir, "display-settings.dat.tmp").toPath() );
+        Files.move(old.toPath(), data.toPath() );
+        assertLatest(new SettingsStore(dir), latest);
+    }
+
+    /** Saves a number of revisions of each of a number of images' settings, returning the last of each. */
+    private static DisplaySettings[] saveRevisions(SettingsStore store, int images, int revisions) {
+
+        DisplaySettings[] latest = new DisplaySettings[images];
+        for (int r = 0; r < revisions; r++) {
+            for (int i = 0; i < images; i++) {
+                CompositeImage ci = image(i + ".tif");
+                ChannelAccess.setDisplayRange(ci, 1, r, 1000 + 10*i + r);
+                latest[i] = DisplaySettings.capture(ci, null);
+                store.save(ci, latest[i]);
+            }
+        }
+        return latest;
+    }
+
+    private static void assertLatest(SettingsStore store, DisplaySettings[] latest) {
+
+        assertEquals(latest.length, store.size() );
+        for (int i = 0; i < latest.length; i++)
+            assertSettingsEqual(latest[i], store.load( image(i + ".tif") ));
+    }
+
+    private static void assertSettingsEqual(DisplaySettings expected, DisplaySettings actual) {
+
+        assertNotNull(actual);
+        assertEquals(expected.bitDepth, actual.bitDepth);
+        assertEquals(expected.channels, actual.channels);
+        assertEquals(expected.mode, actual.mode);
+        assertEquals(expected.currentChannel, actual.currentChannel);
+        assertArrayEquals(expected.min, actual.min, 0);
+        assertArrayEquals(expected.max, actual.max, 0);
+        for (int c = 0; c < expected.channels; c++)
+            assertArrayEquals(expected.luts[c], actual.luts[c]);
+        assertArrayEquals(expected.active, actual.active);
+        assertArrayEquals(expected.names, actual.names);
+    }
+
+    /** Returns a three-channel image, opened from the given file in a fixed directory, or from no file if it is null. */
+    private static CompositeImage image(String fileName) {
+
+        ImageStack stack = new ImageStack(8, 8);
+        for (int c = 0; c < 3; c++)
+            stack.addSlice( new ShortProcessor(8, 8) );
+        ImagePlus imp = new ImagePlus("test", stack);
+        imp.setDimensions(3, 1, 1);
+        CompositeImage ci = new CompositeImage(imp, CompositeImage.COMPOSITE);
+        if (fileName != null) {
+            FileInfo fi = new FileInfo();
+            fi.directory = new File("/data/images").getAbsolutePath();
+            fi.fileName = fileName;
+            ci.setFileInfo(fi);
+        }
+        return ci;
+    }
+}